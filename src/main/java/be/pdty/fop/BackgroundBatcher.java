@@ -0,0 +1,421 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.LineAttributes;
+import org.eclipse.swt.graphics.PathData;
+import org.eclipse.swt.graphics.RGBA;
+
+/**
+ * A drawing context that merges background rectangles. Backgrounds must be
+ * drawn below whatever comes after them, which normally means one fill per
+ * table cell as every cell draws its text right after its background.
+ * Instead, as long as backgrounds are pending, the drawing operations sent to
+ * this context are held back, and the backgrounds are merged per color and
+ * clipping area with a {@link BorderMerger}. State changes are still applied
+ * to the target right away, so that font metrics remain available.
+ *
+ * Backgrounds first, then the held operations, are sent to the target as soon
+ * as a new background overlaps a held operation or a pending background of
+ * another color, and when deferred geometry is committed. They are also sent
+ * once too many backgrounds or drawing operations are pending, so that the
+ * overlap checks remain cheap on large tables.
+ */
+public class BackgroundBatcher implements DrawingContext {
+    private static final float[] IDENTITY = new float[] { 1, 0, 0, 1, 0, 0 };
+    //Maximum number of pending backgrounds, and of held drawing operations.
+    private static final int MAX_PENDING = 256;
+
+    //State of the target, as set through this context.
+    private static class Snapshot {
+        private float[] transform;
+        private RGBA color;
+        private String fontName;
+        private int fontSize;
+        private PathData clip;
+        private float[] clipTransform;
+        private LineAttributes lineAttributes;
+        private RenderPass pass;
+
+        public Snapshot copy() {
+            Snapshot ans = new Snapshot();
+            ans.transform = transform;
+            ans.color = color;
+            ans.fontName = fontName;
+            ans.fontSize = fontSize;
+            ans.clip = clip;
+            ans.clipTransform = clipTransform;
+            ans.lineAttributes = lineAttributes;
+            ans.pass = pass;
+            return ans;
+        }
+
+        public void apply(DrawingContext target) {
+            //The clipping area is interpreted in the transformation active when it was set.
+            target.setTransform(clipTransform);
+            target.setClipping(clip);
+            target.setTransform(transform);
+            if (color != null)
+                target.setColor(color);
+            if (fontName != null)
+                target.setFont(fontName, fontSize);
+            if (lineAttributes != null)
+                target.setLineAttributes(lineAttributes);
+            target.setPass(pass);
+        }
+    }
+
+    private DrawingContext target;
+    private BorderMerger backgrounds;
+    private Snapshot current;
+
+    //State when operations started to be held, and the held operations.
+    private Snapshot start;
+    private List<Consumer<DrawingContext>> held;
+    //Page-space bounds of the held drawing operations (minX, minY, maxX, maxY), state changes have none.
+    private float[] bounds;
+    private int drawn;
+    private int pending;
+    //Union of the bounds.
+    private float minX;
+    private float minY;
+    private float maxX;
+    private float maxY;
+
+    /**
+     * Create a new BackgroundBatcher.
+     *
+     * @param targetContext drawing context receiving the drawing operations.
+     */
+    public BackgroundBatcher(DrawingContext targetContext) {
+        target = targetContext;
+        backgrounds = new BorderMerger();
+        current = new Snapshot();
+        held = new ArrayList<>();
+        bounds = new float[MAX_PENDING * 4];
+    }
+
+    /**
+     * Fill a background rectangle, expressed in page coordinates (i.e. in the
+     * identity transformation of the target).
+     *
+     * @param color background color.
+     * @param clip clipping area, in page coordinates, or null.
+     * @param x left of the rectangle.
+     * @param y top of the rectangle.
+     * @param w width of the rectangle.
+     * @param h height of the rectangle.
+     */
+    public void fillBackground(RGBA color, PathData clip, float x, float y, float w, float h) {
+        if (pending >= MAX_PENDING || drawn >= MAX_PENDING
+                || overlapsHeld(Math.min(x, x + w), Math.min(y, y + h), Math.max(x, x + w), Math.max(y, y + h))
+                || backgrounds.overlaps(color, clip, x, y, w, h)) {
+            flush();
+        }
+        if (start == null) {
+            start = current.copy();
+            minX = minY = Float.POSITIVE_INFINITY;
+            maxX = maxY = Float.NEGATIVE_INFINITY;
+        }
+        backgrounds.add(color, clip, x, y, w, h);
+        pending++;
+    }
+
+    /**
+     * Draw the pending backgrounds, then the held operations.
+     */
+    public void flush() {
+        if (start == null)
+            return;
+
+        target.setPass(RenderPass.BACKGROUND);
+        backgrounds.flush((color, clip, path) -> {
+            target.setTransform(IDENTITY);
+            target.setClipping(clip);
+            target.setColor(color);
+            target.fillPath(path);
+        });
+
+        start.apply(target);
+        for (Consumer<DrawingContext> operation : held) {
+            operation.accept(target);
+        }
+        held.clear();
+        drawn = 0;
+        pending = 0;
+        start = null;
+    }
+
+    //Check whether the given page area (strictly) overlaps a held drawing operation.
+    private boolean overlapsHeld(float x0, float y0, float x1, float y1) {
+        if (minX >= x1 || maxX <= x0 || minY >= y1 || maxY <= y0)
+            return false;
+        for (int i = 0; i < drawn * 4; i += 4) {
+            if (bounds[i] < x1 && bounds[i + 2] > x0 && bounds[i + 1] < y1 && bounds[i + 3] > y0)
+                return true;
+        }
+        return false;
+    }
+
+    //Hold a state change.
+    private void hold(Consumer<DrawingContext> operation) {
+        held.add(operation);
+    }
+
+    //Hold a drawing operation covering the given area in the current transformation.
+    private void hold(Consumer<DrawingContext> operation, float x0, float y0, float x1, float y1) {
+        int i = drawn * 4;
+        if (i == bounds.length)
+            bounds = Arrays.copyOf(bounds, bounds.length * 2);
+        float[] m = current.transform == null ? IDENTITY : current.transform;
+        float bx0 = Float.POSITIVE_INFINITY;
+        float by0 = Float.POSITIVE_INFINITY;
+        float bx1 = Float.NEGATIVE_INFINITY;
+        float by1 = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < 4; c++) {
+            float x = (c & 1) == 0 ? x0 : x1;
+            float y = (c & 2) == 0 ? y0 : y1;
+            float tx = m[0] * x + m[2] * y + m[4];
+            float ty = m[1] * x + m[3] * y + m[5];
+            bx0 = Math.min(bx0, tx);
+            by0 = Math.min(by0, ty);
+            bx1 = Math.max(bx1, tx);
+            by1 = Math.max(by1, ty);
+        }
+        bounds[i] = bx0;
+        bounds[i + 1] = by0;
+        bounds[i + 2] = bx1;
+        bounds[i + 3] = by1;
+        minX = Math.min(minX, bx0);
+        minY = Math.min(minY, by0);
+        maxX = Math.max(maxX, bx1);
+        maxY = Math.max(maxY, by1);
+        drawn++;
+        held.add(operation);
+    }
+
+    //Shallow copy, so that the caller can reuse its PathData instance.
+    private static PathData copy(PathData data) {
+        PathData ans = new PathData();
+        ans.points = data.points;
+        ans.types = data.types;
+        return ans;
+    }
+
+    private float getLineWidth() {
+        return current.lineAttributes == null ? 0 : current.lineAttributes.width;
+    }
+
+    //Glyphs may slightly overhang their advance.
+    private float getTextMargin() {
+        return current.fontSize / 8000f;
+    }
+
+    @Override
+    public void setTransform(float[] transformValues) {
+        current.transform = transformValues;
+        target.setTransform(transformValues);
+        if (start != null)
+            hold(t -> t.setTransform(transformValues));
+    }
+
+    @Override
+    public void setColor(RGBA rgba) {
+        current.color = rgba;
+        target.setColor(rgba);
+        if (start != null)
+            hold(t -> t.setColor(rgba));
+    }
+
+    @Override
+    public void setFont(String name, int size) {
+        current.fontName = name;
+        current.fontSize = size;
+        target.setFont(name, size);
+        if (start != null)
+            hold(t -> t.setFont(name, size));
+    }
+
+    @Override
+    public void setClipping(PathData data) {
+        PathData clip = data == null ? null : copy(data);
+        current.clip = clip;
+        current.clipTransform = current.transform;
+        target.setClipping(clip);
+        if (start != null)
+            hold(t -> t.setClipping(clip));
+    }
+
+    @Override
+    public void setLineAttributes(LineAttributes attributes) {
+        current.lineAttributes = attributes;
+        target.setLineAttributes(attributes);
+        if (start != null)
+            hold(t -> t.setLineAttributes(attributes));
+    }
+
+    @Override
+    public void setPass(RenderPass renderPass) {
+        current.pass = renderPass;
+        target.setPass(renderPass);
+        if (start != null)
+            hold(t -> t.setPass(renderPass));
+    }
+
+    @Override
+    public void fillRectangle(float x, float y, float w, float h) {
+        if (start == null) {
+            target.fillRectangle(x, y, w, h);
+        } else {
+            hold(t -> t.fillRectangle(x, y, w, h), x, y, x + w, y + h);
+        }
+    }
+
+    @Override
+    public void drawRectangle(float x, float y, float w, float h) {
+        if (start == null) {
+            target.drawRectangle(x, y, w, h);
+        } else {
+            float lw = getLineWidth() / 2;
+            hold(t -> t.drawRectangle(x, y, w, h), x - lw, y - lw, x + w + lw, y + h + lw);
+        }
+    }
+
+    @Override
+    public void drawLine(float x1, float y1, float x2, float y2) {
+        if (start == null) {
+            target.drawLine(x1, y1, x2, y2);
+        } else {
+            float lw = getLineWidth() / 2;
+            hold(t -> t.drawLine(x1, y1, x2, y2), Math.min(x1, x2) - lw, Math.min(y1, y2) - lw,
+                    Math.max(x1, x2) + lw, Math.max(y1, y2) + lw);
+        }
+    }
+
+    @Override
+    public void drawString(String s, float x, float y) {
+        if (start == null) {
+            target.drawString(s, x, y);
+        } else {
+            GCWrapper.Metrics m = target.getFontMetrics();
+            float margin = getTextMargin();
+            hold(t -> t.drawString(s, x, y), x - margin, y, x + target.stringExtentWidth(s) + margin, y + m.height);
+        }
+    }
+
+    @Override
+    public void drawStringAtBaseline(String s, float x, float baseline) {
+        if (start == null) {
+            target.drawStringAtBaseline(s, x, baseline);
+        } else {
+            GCWrapper.Metrics m = target.getFontMetrics();
+            float margin = getTextMargin();
+            hold(t -> t.drawStringAtBaseline(s, x, baseline), x - margin, baseline - m.ascent,
+                    x + target.stringExtentWidth(s) + margin, baseline + m.descent);
+        }
+    }
+
+    @Override
+    public GCWrapper.Metrics getFontMetrics() {
+        return target.getFontMetrics();
+    }
+
+    @Override
+    public float stringExtentWidth(String s) {
+        return target.stringExtentWidth(s);
+    }
+
+    @Override
+    public Base14FontProvider.FontInfo getFontInfo(String name) {
+        return target.getFontInfo(name);
+    }
+
+    @Override
+    public float getResolution() {
+        return target.getResolution();
+    }
+
+    @Override
+    public void drawImage(ImageData data, float x, float y) {
+        if (start == null) {
+            target.drawImage(data, x, y);
+        } else {
+            hold(t -> t.drawImage(data, x, y), x, y, x + data.width, y + data.height);
+        }
+    }
+
+    @Override
+    public void drawRasterised(Rasteriser rasteriser, float x, float y, float w, float h) {
+        if (start == null) {
+            target.drawRasterised(rasteriser, x, y, w, h);
+        } else {
+            hold(t -> t.drawRasterised(rasteriser, x, y, w, h), x, y, x + w, y + h);
+        }
+    }
+
+    @Override
+    public void fillPattern(ImageData data, float x, float y, float w, float h, float tileX, float tileY, float tileW,
+            float tileH) {
+        if (start == null) {
+            target.fillPattern(data, x, y, w, h, tileX, tileY, tileW, tileH);
+        } else {
+            hold(t -> t.fillPattern(data, x, y, w, h, tileX, tileY, tileW, tileH), x, y, x + w, y + h);
+        }
+    }
+
+    @Override
+    public void fillPath(PathData data) {
+        if (start == null) {
+            target.fillPath(data);
+            return;
+        }
+        PathData path = copy(data);
+        float x0 = Float.POSITIVE_INFINITY;
+        float y0 = Float.POSITIVE_INFINITY;
+        float x1 = Float.NEGATIVE_INFINITY;
+        float y1 = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i + 1 < path.points.length; i += 2) {
+            x0 = Math.min(x0, path.points[i]);
+            y0 = Math.min(y0, path.points[i + 1]);
+            x1 = Math.max(x1, path.points[i]);
+            y1 = Math.max(y1, path.points[i + 1]);
+        }
+        if (x0 > x1) {
+            //Empty path, nothing to draw anyway.
+            return;
+        }
+        hold(t -> t.fillPath(path), x0, y0, x1, y1);
+    }
+
+    @Override
+    public void fillPathDeferred(PathData data) {
+        //Deferred geometry is drawn above everything anyway.
+        target.fillPathDeferred(data);
+    }
+
+    @Override
+    public void commitDeferred() {
+        flush();
+        target.commitDeferred();
+    }
+}
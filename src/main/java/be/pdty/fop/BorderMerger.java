@@ -0,0 +1,298 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.PathData;
+import org.eclipse.swt.graphics.RGBA;
+
+/**
+ * Collects the solid segments of collapsed table borders and merges them into
+ * long runs. Every cell of a collapsed table draws its own four borders, which
+ * results in many small rectangles overlapping their neighbours: rectangles
+ * sharing the same vertical span are first merged when they touch or overlap
+ * horizontally, and the results sharing the same horizontal span are then
+ * merged vertically. Each batch is finally emitted as one single path. Any
+ * filled rectangle can be merged that way, and the {@link BackgroundBatcher}
+ * uses it for cell backgrounds as well.
+ *
+ * Rectangles are batched per color and clipping area, and must all be
+ * expressed in the same coordinate system: cells are usually drawn in their
+ * own translated coordinates, so callers are expected to bring the rectangles
+ * back into a common one before adding them.
+ */
+public class BorderMerger {
+    //Tolerance when comparing coordinates, in pt.
+    private static final float EPSILON = 0.001f;
+
+    /**
+     * Receiver of the merged rectangles.
+     */
+    public interface Target {
+        /**
+         * Fill the given path.
+         *
+         * @param color fill color.
+         * @param clip clipping area, or null.
+         * @param path merged rectangles.
+         */
+        public void fill(RGBA color, PathData clip, PathData path);
+    }
+
+    //Clipping areas are compared by content.
+    private static class BatchKey {
+        private RGBA color;
+        private PathData clip;
+        private int hash;
+
+        public BatchKey(RGBA c, PathData cl) {
+            color = c;
+            clip = cl;
+            hash = color.hashCode();
+            if (clip != null)
+                hash = (hash * 31 + Arrays.hashCode(clip.points)) * 31 + Arrays.hashCode(clip.types);
+        }
+
+        public boolean matches(RGBA c, PathData cl) {
+            if (!color.equals(c))
+                return false;
+            if (clip == cl)
+                return true;
+            return clip != null && cl != null && Arrays.equals(clip.points, cl.points)
+                    && Arrays.equals(clip.types, cl.types);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BatchKey))
+                return false;
+            BatchKey o = (BatchKey) obj;
+            return hash == o.hash && matches(o.color, o.clip);
+        }
+    }
+
+    private static class Batch {
+        private float[] rects = new float[64];
+        private int count;
+        private float minX = Float.POSITIVE_INFINITY;
+        private float minY = Float.POSITIVE_INFINITY;
+        private float maxX = Float.NEGATIVE_INFINITY;
+        private float maxY = Float.NEGATIVE_INFINITY;
+
+        public void add(float x, float y, float w, float h) {
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x + w);
+            maxY = Math.max(maxY, y + h);
+            if (count * 4 == rects.length)
+                rects = Arrays.copyOf(rects, rects.length * 2);
+            rects[count * 4] = x;
+            rects[count * 4 + 1] = y;
+            rects[count * 4 + 2] = w;
+            rects[count * 4 + 3] = h;
+            count++;
+        }
+    }
+
+    private Map<BatchKey, Batch> batches = new LinkedHashMap<>();
+
+    //Batch of the last added rectangle: consecutive rectangles usually share it.
+    private RGBA lastColor;
+    private PathData lastClip;
+    private Batch lastBatch;
+
+    /**
+     * Add a rectangle.
+     *
+     * @param color rectangle color.
+     * @param clip clipping area, or null.
+     * @param x left of the rectangle.
+     * @param y top of the rectangle.
+     * @param w width of the rectangle.
+     * @param h height of the rectangle.
+     */
+    public void add(RGBA color, PathData clip, float x, float y, float w, float h) {
+        if (w < 0) {
+            x += w;
+            w = -w;
+        }
+        if (h < 0) {
+            y += h;
+            h = -h;
+        }
+        if (w == 0 || h == 0)
+            return;
+        if (lastBatch == null || clip != lastClip || !color.equals(lastColor)) {
+            BatchKey key = new BatchKey(color, clip);
+            lastBatch = batches.get(key);
+            if (lastBatch == null) {
+                lastBatch = new Batch();
+                batches.put(key, lastBatch);
+            }
+            lastColor = color;
+            lastClip = clip;
+        }
+        lastBatch.add(x, y, w, h);
+    }
+
+    /**
+     * Check whether the given rectangle overlaps a pending rectangle of another
+     * batch, in which case the pending rectangles must be flushed first if
+     * their relative order matters. Rectangles that merely touch don't overlap.
+     *
+     * @param color rectangle color.
+     * @param clip clipping area, or null.
+     * @param x left of the rectangle.
+     * @param y top of the rectangle.
+     * @param w width of the rectangle.
+     * @param h height of the rectangle.
+     * @return true if the rectangle overlaps a rectangle of another batch.
+     */
+    public boolean overlaps(RGBA color, PathData clip, float x, float y, float w, float h) {
+        float x0 = Math.min(x, x + w) + EPSILON;
+        float y0 = Math.min(y, y + h) + EPSILON;
+        float x1 = Math.max(x, x + w) - EPSILON;
+        float y1 = Math.max(y, y + h) - EPSILON;
+        for (Map.Entry<BatchKey, Batch> entry : batches.entrySet()) {
+            Batch batch = entry.getValue();
+            if (batch.minX >= x1 || batch.maxX <= x0 || batch.minY >= y1 || batch.maxY <= y0)
+                continue;
+            if (entry.getKey().matches(color, clip))
+                continue;
+            float[] r = batch.rects;
+            for (int i = 0; i < batch.count * 4; i += 4) {
+                if (r[i] < x1 && r[i] + r[i + 2] > x0 && r[i + 1] < y1 && r[i + 1] + r[i + 3] > y0)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether there is no pending rectangle.
+     *
+     * @return true if there is nothing to flush.
+     */
+    public boolean isEmpty() {
+        return batches.isEmpty();
+    }
+
+    /**
+     * Forget about all pending rectangles.
+     */
+    public void clear() {
+        batches.clear();
+        lastBatch = null;
+    }
+
+    /**
+     * Merge the pending rectangles and send them to the given target, one path
+     * per batch, in the order the batches were started.
+     *
+     * @param target target.
+     */
+    public void flush(Target target) {
+        for (Map.Entry<BatchKey, Batch> entry : batches.entrySet()) {
+            BatchKey key = entry.getKey();
+            Batch batch = entry.getValue();
+            float[] merged = merge(batch.rects, batch.count);
+            target.fill(key.color, key.clip, toPathData(merged));
+        }
+        clear();
+    }
+
+    /**
+     * Merge the given rectangles (x, y, w, h). Rectangles sharing the same y
+     * and h are merged when they touch or overlap, and the results sharing the
+     * same x and w are then merged likewise.
+     *
+     * @param rects rectangles, 4 values each.
+     * @param count number of rectangles.
+     * @return merged rectangles, 4 values each.
+     */
+    static float[] merge(float[] rects, int count) {
+        List<float[]> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(Arrays.copyOfRange(rects, i * 4, i * 4 + 4));
+        }
+        list = mergeRuns(mergeRuns(list, 0), 1);
+
+        float[] ans = new float[list.size() * 4];
+        for (int i = 0; i < list.size(); i++) {
+            System.arraycopy(list.get(i), 0, ans, i * 4, 4);
+        }
+        return ans;
+    }
+
+    //Merge runs along the given axis (0 for x, 1 for y). The given rectangles may be modified.
+    private static List<float[]> mergeRuns(List<float[]> rects, int axis) {
+        List<float[]> ans = new ArrayList<>();
+        if (rects.isEmpty())
+            return ans;
+        int other = 1 - axis;
+        rects.sort(Comparator.<float[]> comparingDouble(r -> r[other]).thenComparingDouble(r -> r[other + 2])
+                .thenComparingDouble(r -> r[axis]));
+
+        float[] current = rects.get(0);
+        for (int i = 1; i < rects.size(); i++) {
+            float[] r = rects.get(i);
+            if (Math.abs(r[other] - current[other]) <= EPSILON && Math.abs(r[other + 2] - current[other + 2]) <= EPSILON
+                    && r[axis] <= current[axis] + current[axis + 2] + EPSILON) {
+                current[axis + 2] = Math.max(current[axis + 2], r[axis] + r[axis + 2] - current[axis]);
+            } else {
+                ans.add(current);
+                current = r;
+            }
+        }
+        ans.add(current);
+        return ans;
+    }
+
+    //All rectangles are clockwise so that they add up with the winding rule.
+    private static PathData toPathData(float[] rects) {
+        int count = rects.length / 4;
+        PathData path = new PathData();
+        path.types = new byte[count * 5];
+        path.points = new float[count * 8];
+        for (int i = 0; i < count; i++) {
+            float x = rects[i * 4];
+            float y = rects[i * 4 + 1];
+            float w = rects[i * 4 + 2];
+            float h = rects[i * 4 + 3];
+            path.types[i * 5] = SWT.PATH_MOVE_TO;
+            path.types[i * 5 + 1] = SWT.PATH_LINE_TO;
+            path.types[i * 5 + 2] = SWT.PATH_LINE_TO;
+            path.types[i * 5 + 3] = SWT.PATH_LINE_TO;
+            path.types[i * 5 + 4] = SWT.PATH_CLOSE;
+            float[] points = { x, y, x + w, y, x + w, y + h, x, y + h };
+            System.arraycopy(points, 0, path.points, i * 8, 8);
+        }
+        return path;
+    }
+}
@@ -20,12 +20,20 @@ import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Shape;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.ImageData;
 import org.eclipse.swt.graphics.LineAttributes;
+import org.eclipse.swt.graphics.PaletteData;
 import org.eclipse.swt.graphics.PathData;
 import org.eclipse.swt.graphics.RGBA;
 
@@ -155,6 +163,95 @@ public class Convert {
         return ans;
     }
 
+    /**
+     * Convert a PathData into an AWT Shape.
+     * 
+     * @param data SWT PathData.
+     * @return AWT shape.
+     */
+    public static Shape toShape(PathData data) {
+        if (data == null)
+            return null;
+        Path2D.Float ans = new Path2D.Float(Path2D.WIND_NON_ZERO, data.types.length);
+        int offset = 0;
+        for (byte type : data.types) {
+            switch (type) {
+            case SWT.PATH_MOVE_TO:
+                ans.moveTo(data.points[offset], data.points[offset + 1]);
+                offset += 2;
+                break;
+            case SWT.PATH_LINE_TO:
+                ans.lineTo(data.points[offset], data.points[offset + 1]);
+                offset += 2;
+                break;
+            case SWT.PATH_QUAD_TO:
+                ans.quadTo(data.points[offset], data.points[offset + 1], data.points[offset + 2], data.points[offset + 3]);
+                offset += 4;
+                break;
+            case SWT.PATH_CUBIC_TO:
+                ans.curveTo(data.points[offset], data.points[offset + 1], data.points[offset + 2], data.points[offset + 3],
+                        data.points[offset + 4], data.points[offset + 5]);
+                offset += 6;
+                break;
+            case SWT.PATH_CLOSE:
+                ans.closePath();
+                break;
+            default:
+                break;
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * Convert an AWT RenderedImage into an ImageData.
+     * 
+     * @param image AWT image.
+     * @return SWT ImageData.
+     */
+    public static ImageData toImageData(RenderedImage image) {
+        ColorModel color = image.getColorModel();
+        BufferedImage buffered = image instanceof BufferedImage ? (BufferedImage) image : null;
+        Raster raster = buffered == null ? image.getData() : null;
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        ImageData imageData = new ImageData(width, height, 32, new PaletteData(0xFF0000, 0xFF00, 0xFF));
+        byte[] alpha = null;
+
+        //Fill the 32 bits pixels (MSB first) row by row, and only create the alpha channel
+        //once we meet a non opaque pixel.
+        int[] row = new int[width];
+        Object data = null;
+        for (int j = 0; j < height; j++) {
+            if (buffered != null) {
+                buffered.getRGB(0, j, width, 1, row, 0, width);
+            } else {
+                for (int i = 0; i < width; i++) {
+                    data = raster.getDataElements(raster.getMinX() + i, raster.getMinY() + j, data);
+                    row[i] = color.getRGB(data);
+                }
+            }
+            int offset = j * imageData.bytesPerLine;
+            for (int i = 0; i < width; i++) {
+                int argb = row[i];
+                imageData.data[offset++] = 0;
+                imageData.data[offset++] = (byte) (argb >> 16);
+                imageData.data[offset++] = (byte) (argb >> 8);
+                imageData.data[offset++] = (byte) argb;
+                int a = argb >>> 24;
+                if (a != 0xFF && alpha == null) {
+                    alpha = new byte[width * height];
+                    Arrays.fill(alpha, 0, j * width + i, (byte) 0xFF);
+                }
+                if (alpha != null)
+                    alpha[j * width + i] = (byte) a;
+            }
+        }
+        imageData.alphaData = alpha;
+        return imageData;
+    }
+
     /**
      * Convert an AWT transform into an array of floats for SWT transform.
      * 
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.PathData;
+
+/**
+ * Generates dashed and dotted lines as polygons, one per dash, so that they
+ * can be filled (and batched with other deferred geometry) instead of being
+ * stroked with a dash pattern.
+ *
+ * The dashes are laid out along a horizontal segment starting at the origin,
+ * then rotated and translated onto the actual segment. The last dash is cut at
+ * the end of the segment. Dashes have butt ends and the pattern starts with a
+ * dash at the start of the segment.
+ */
+public class DashGeometry {
+    private DashGeometry() {
+    }
+
+    /**
+     * Create the dashes of the given segment.
+     *
+     * @param on dash length.
+     * @param off gap length.
+     * @param width line width.
+     * @param x1 x coordinate of the start of the segment (center of the line).
+     * @param y1 y coordinate of the start of the segment.
+     * @param x2 x coordinate of the end of the segment.
+     * @param y2 y coordinate of the end of the segment.
+     * @return the dashes, one closed sub-path each, or null if there is nothing to
+     *         draw.
+     */
+    public static PathData createDashes(float on, float off, float width, float x1, float y1, float x2, float y2) {
+        float length = (float) Math.hypot(x2 - x1, y2 - y1);
+        if (on <= 0 || off < 0 || width <= 0 || length <= 0)
+            return null;
+        int count = (int) Math.ceil(length / (on + off));
+        float half = width / 2;
+
+        //Unit vector along the segment.
+        float ux = (x2 - x1) / length;
+        float uy = (y2 - y1) / length;
+
+        PathData path = new PathData();
+        path.types = new byte[count * 5];
+        path.points = new float[count * 8];
+        for (int i = 0; i < count; i++) {
+            path.types[i * 5] = SWT.PATH_MOVE_TO;
+            path.types[i * 5 + 1] = SWT.PATH_LINE_TO;
+            path.types[i * 5 + 2] = SWT.PATH_LINE_TO;
+            path.types[i * 5 + 3] = SWT.PATH_LINE_TO;
+            path.types[i * 5 + 4] = SWT.PATH_CLOSE;
+            float start = i * (on + off);
+            float end = Math.min(start + on, length);
+            float[] dash = { start, -half, end, -half, end, half, start, half };
+            for (int j = 0; j < 8; j += 2) {
+                path.points[i * 8 + j] = x1 + ux * dash[j] - uy * dash[j + 1];
+                path.points[i * 8 + j + 1] = y1 + uy * dash[j] + ux * dash[j + 1];
+            }
+        }
+        return path;
+    }
+}
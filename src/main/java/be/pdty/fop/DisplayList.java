@@ -0,0 +1,680 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.fop.fonts.FontInfo;
+import org.apache.fop.fonts.Typeface;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.LineAttributes;
+import org.eclipse.swt.graphics.PathData;
+import org.eclipse.swt.graphics.RGBA;
+
+/**
+ * A DrawingContext that records the drawing operations instead of executing
+ * them, so that they can be replayed later onto a GC. Recording does not
+ * involve any SWT resource and can therefore take place on any thread, while
+ * the replay must happen on the device thread.
+ *
+ * Because there is no device to measure the text, font metrics and string
+ * extents are computed from FOP's own font metrics. Text itself is recorded
+ * against its baseline so that it is positioned with the actual font metrics
+ * of the target at replay time.
+ *
+ * The page-space bounds of each drawing command are recorded as well, so that
+ * only the commands intersecting a given area need to be replayed (see
+ * {@link #replay(DrawingContext, float, float, float, float)}). State commands
+ * are always replayed.
+ *
+ * Each drawing command is also tagged with a {@link RenderPass}, so that the
+ * page can be rendered progressively: backgrounds and borders first, then text,
+ * then decorations and images (see {@link #print(GC, PassListener)}).
+ *
+ * Once recorded, fills and images entirely hidden by later opaque content can
+ * be dropped with {@link #cullOccluded()}.
+ *
+ * A display list is not thread-safe: it must be fully recorded before being
+ * replayed, and should not be replayed concurrently.
+ */
+public class DisplayList implements DrawingContext, Printable {
+    private interface Command {
+        void replay(DrawingContext target);
+    }
+
+    /**
+     * Listener notified during progressive rendering.
+     */
+    public interface PassListener {
+        /**
+         * Called once all the operations of the given pass have been
+         * rendered, so that the partial result can be shown.
+         * 
+         * @param pass completed pass.
+         */
+        public void passCompleted(RenderPass pass);
+    }
+
+    //Rough memory footprint of a command, used for size estimates.
+    private static final int COMMAND_SIZE = 64;
+
+    //Number of commands replayed between two budget checks.
+    private static final int BUDGET_CHECK_INTERVAL = 64;
+
+    //Nominal resolution reported when recording, in pixels per point (144 dpi). Vector content is kept as
+    //such and rasterised at the resolution of the target when replaying.
+    private static final float RESOLUTION = 2f;
+
+    private static final float[] IDENTITY = new float[] { 1, 0, 0, 1, 0, 0 };
+
+    //Opaque axis-aligned content, hiding whatever it fully covers below it.
+    private static class Occluder {
+        private int command;
+        private int clip;
+        private byte pass;
+        //Page-space rectangles (minX, minY, maxX, maxY).
+        private float[] rectangles;
+
+        public Occluder(int c, int cl, byte p, float[] r) {
+            command = c;
+            clip = cl;
+            pass = p;
+            rectangles = r;
+        }
+
+        public boolean covers(float[] b, int i) {
+            for (int r = 0; r < rectangles.length; r += 4) {
+                if (rectangles[r] <= b[i] && rectangles[r + 1] <= b[i + 1] && rectangles[r + 2] >= b[i + 2]
+                        && rectangles[r + 3] >= b[i + 3])
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private Base14FontProvider fonts;
+    private FontInfo fontInfo;
+    private Map<String, Typeface> typefaces;
+
+    private String fontName;
+    private int fontSize;
+    private float[] transform;
+    private float lineWidth;
+    private RGBA color;
+    //Clipping area of the following commands: 0 for none, a new value for each clipping area.
+    private int clip;
+    private int clipCount;
+
+    private List<Command> commands;
+    //Page-space bounds of each command (minX, minY, maxX, maxY), minX is NaN for state commands.
+    private float[] bounds;
+    //Rendering pass of each command, -1 for state commands.
+    private byte[] passes;
+    private RenderPass pass;
+    private long dataSize;
+
+    //Fills and images that may be culled, with their clipping area, and the opaque content.
+    private BitSet cullable;
+    private int[] clips;
+    private List<Occluder> occluders;
+
+    /**
+     * Create a new, empty, DisplayList.
+     *
+     * @param fontProvider font provider used to resolve the system fonts
+     *            behind the Base14 fonts. Only its font information is used,
+     *            so that the display list can be recorded on any thread.
+     * @param fopFonts FOP font information, used to compute text metrics.
+     */
+    public DisplayList(Base14FontProvider fontProvider, FontInfo fopFonts) {
+        fonts = fontProvider;
+        fontInfo = fopFonts;
+        typefaces = new HashMap<>();
+        commands = new ArrayList<>();
+        bounds = new float[256];
+        passes = new byte[64];
+        cullable = new BitSet();
+        clips = new int[64];
+        occluders = new ArrayList<>();
+    }
+
+    //Add a state command, which must always be replayed.
+    private void add(Command command) {
+        add(command, Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+    }
+
+    //Add a drawing command, covering the given area in the current transform.
+    private void add(Command command, float x0, float y0, float x1, float y1) {
+        add(command, x0, y0, x1, y1, RenderPass.BACKGROUND);
+    }
+
+    //Add a drawing command of the given default pass, covering the given area in the current transform.
+    private void add(Command command, float x0, float y0, float x1, float y1, RenderPass defaultPass) {
+        int i = commands.size() * 4;
+        if (i == bounds.length) {
+            bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            passes = Arrays.copyOf(passes, passes.length * 2);
+            clips = Arrays.copyOf(clips, clips.length * 2);
+        }
+        clips[i / 4] = clip;
+        if (Float.isNaN(x0)) {
+            bounds[i] = Float.NaN;
+            passes[i / 4] = -1;
+        } else {
+            passes[i / 4] = (byte) (pass == null ? defaultPass : pass).ordinal();
+            float[] m = transform == null ? IDENTITY : transform;
+            float minX = Float.POSITIVE_INFINITY;
+            float minY = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY;
+            float maxY = Float.NEGATIVE_INFINITY;
+            for (int c = 0; c < 4; c++) {
+                float x = (c & 1) == 0 ? x0 : x1;
+                float y = (c & 2) == 0 ? y0 : y1;
+                float tx = m[0] * x + m[2] * y + m[4];
+                float ty = m[1] * x + m[3] * y + m[5];
+                minX = Math.min(minX, tx);
+                minY = Math.min(minY, ty);
+                maxX = Math.max(maxX, tx);
+                maxY = Math.max(maxY, ty);
+            }
+            bounds[i] = minX;
+            bounds[i + 1] = minY;
+            bounds[i + 2] = maxX;
+            bounds[i + 3] = maxY;
+        }
+        commands.add(command);
+    }
+
+    //Add a path command, covering the bounds of the given path.
+    private void add(Command command, PathData path) {
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i + 1 < path.points.length; i += 2) {
+            minX = Math.min(minX, path.points[i]);
+            minY = Math.min(minY, path.points[i + 1]);
+            maxX = Math.max(maxX, path.points[i]);
+            maxY = Math.max(maxY, path.points[i + 1]);
+        }
+        if (minX > maxX) {
+            //Empty path, nothing to draw anyway.
+            minX = minY = maxX = maxY = 0;
+        }
+        add(command, minX, minY, maxX, maxY);
+    }
+
+    //Mark the last command as a fill or image that may be culled, and record it as an occluder if it is
+    //opaque. The rectangles are expressed in the current transform, which must be axis-aligned for
+    //them to occlude anything.
+    private void addOccluder(boolean opaque, float[] rectangles) {
+        int index = commands.size() - 1;
+        cullable.set(index);
+        float[] m = transform == null ? IDENTITY : transform;
+        if (!opaque || rectangles == null || m[1] != 0 || m[2] != 0)
+            return;
+        float[] r = new float[rectangles.length];
+        for (int i = 0; i < r.length; i += 4) {
+            float x0 = m[0] * rectangles[i] + m[4];
+            float x1 = m[0] * rectangles[i + 2] + m[4];
+            float y0 = m[3] * rectangles[i + 1] + m[5];
+            float y1 = m[3] * rectangles[i + 3] + m[5];
+            r[i] = Math.min(x0, x1);
+            r[i + 1] = Math.min(y0, y1);
+            r[i + 2] = Math.max(x0, x1);
+            r[i + 3] = Math.max(y0, y1);
+        }
+        occluders.add(new Occluder(index, clip, passes[index], r));
+    }
+
+    //Get the rectangles (minX, minY, maxX, maxY) making up the given path, or null if it is not only made
+    //of axis-aligned rectangles of the same orientation (with the non-zero winding rule, their union is then
+    //filled).
+    private static float[] getRectangles(PathData path) {
+        float[] ans = new float[path.types.length];
+        int count = 0;
+        int orientation = 0;
+        int p = 0;
+        int t = 0;
+        while (t < path.types.length) {
+            if (path.types[t] != SWT.PATH_MOVE_TO || t + 3 >= path.types.length)
+                return null;
+            for (int k = 1; k <= 3; k++) {
+                if (path.types[t + k] != SWT.PATH_LINE_TO)
+                    return null;
+            }
+            float[] pt = path.points;
+            t += 4;
+            int next = p + 8;
+            //Optional line back to the first corner, then optional close.
+            if (t < path.types.length && path.types[t] == SWT.PATH_LINE_TO) {
+                if (pt[next] != pt[p] || pt[next + 1] != pt[p + 1])
+                    return null;
+                t++;
+                next += 2;
+            }
+            if (t < path.types.length && path.types[t] == SWT.PATH_CLOSE)
+                t++;
+
+            boolean vertical = pt[p] == pt[p + 2] && pt[p + 3] == pt[p + 5] && pt[p + 4] == pt[p + 6]
+                    && pt[p + 7] == pt[p + 1];
+            boolean horizontal = pt[p + 1] == pt[p + 3] && pt[p + 2] == pt[p + 4] && pt[p + 5] == pt[p + 7]
+                    && pt[p + 6] == pt[p];
+            if (!vertical && !horizontal)
+                return null;
+            float area = (pt[p + 4] - pt[p]) * (pt[p + 5] - pt[p + 1]);
+            int o = (int) Math.signum(horizontal ? area : -area);
+            if (o != 0) {
+                if (orientation != 0 && o != orientation)
+                    return null;
+                orientation = o;
+            }
+            ans[count++] = Math.min(pt[p], pt[p + 4]);
+            ans[count++] = Math.min(pt[p + 1], pt[p + 5]);
+            ans[count++] = Math.max(pt[p], pt[p + 4]);
+            ans[count++] = Math.max(pt[p + 1], pt[p + 5]);
+            p = next;
+        }
+        return Arrays.copyOf(ans, count);
+    }
+
+    //Shallow copy, so that the caller can reuse its PathData instance.
+    private static PathData copy(PathData data) {
+        PathData ans = new PathData();
+        ans.points = data.points;
+        ans.types = data.types;
+        return ans;
+    }
+
+    private Typeface getTypeface() {
+        Typeface ans = typefaces.get(fontName);
+        if (ans == null) {
+            for (Typeface tf : fontInfo.getFonts().values()) {
+                if (tf.getFontName().equals(fontName)) {
+                    ans = tf;
+                    break;
+                }
+            }
+            if (ans == null)
+                throw new IllegalStateException("Unknown font: " + fontName); //$NON-NLS-1$
+            typefaces.put(fontName, ans);
+        }
+        return ans;
+    }
+
+    /**
+     * Get the number of recorded commands.
+     *
+     * @return number of commands.
+     */
+    public int size() {
+        return commands.size();
+    }
+
+    /**
+     * Get a rough estimate of the memory used by this display list, in bytes.
+     *
+     * @return estimated size.
+     */
+    public long estimateSize() {
+        return (long) commands.size() * COMMAND_SIZE + bounds.length * 4 + passes.length + clips.length * 4
+                + dataSize;
+    }
+
+    /**
+     * Drop the fills and images that are entirely covered by later opaque
+     * fills or images drawn with the same clipping area (or without any), so
+     * that heavily layered pages do not paint the same pixels over and over.
+     * Only axis-aligned rectangles and images are considered as occluders,
+     * and a command is only dropped if a single occluder covers it. Deferred
+     * fills are never dropped, as they are drawn above everything else. The
+     * rendering passes are taken into account, so that progressive rendering
+     * is not affected either.
+     *
+     * This is meant to be called once the page has been recorded, before
+     * replaying it.
+     *
+     * @return number of dropped commands.
+     */
+    public int cullOccluded() {
+        if (occluders.isEmpty())
+            return 0;
+
+        BitSet dropped = new BitSet();
+        List<Occluder> above = new ArrayList<>();
+        int next = occluders.size() - 1;
+        for (int i = commands.size() - 1; i >= 0; i--) {
+            if (cullable.get(i)) {
+                for (Occluder o : above) {
+                    if ((o.clip == 0 || o.clip == clips[i]) && o.pass >= passes[i] && o.covers(bounds, i * 4)) {
+                        dropped.set(i);
+                        break;
+                    }
+                }
+            }
+            if (next >= 0 && occluders.get(next).command == i) {
+                if (!dropped.get(i))
+                    above.add(occluders.get(next));
+                next--;
+            }
+        }
+        if (dropped.isEmpty())
+            return 0;
+
+        int j = 0;
+        List<Command> kept = new ArrayList<>(commands.size() - dropped.cardinality());
+        for (int i = 0; i < commands.size(); i++) {
+            if (dropped.get(i))
+                continue;
+            kept.add(commands.get(i));
+            System.arraycopy(bounds, i * 4, bounds, j * 4, 4);
+            passes[j] = passes[i];
+            clips[j] = clips[i];
+            j++;
+        }
+        commands = kept;
+        //Culling only happens once, the page being complete.
+        cullable.clear();
+        occluders.clear();
+        return dropped.cardinality();
+    }
+
+    /**
+     * Replay the recorded operations onto the given drawing context.
+     *
+     * @param target drawing context.
+     */
+    public void replay(DrawingContext target) {
+        for (Command command : commands) {
+            command.replay(target);
+        }
+        target.commitDeferred();
+    }
+
+    /**
+     * Replay the recorded operations intersecting the given page area onto the
+     * given drawing context. Drawing operations lying entirely outside of the
+     * area are skipped.
+     *
+     * @param target drawing context.
+     * @param x x of the area, in page coordinates.
+     * @param y y of the area, in page coordinates.
+     * @param w width of the area.
+     * @param h height of the area.
+     */
+    public void replay(DrawingContext target, float x, float y, float w, float h) {
+        float maxX = x + w;
+        float maxY = y + h;
+        for (int i = 0; i < commands.size(); i++) {
+            int b = i * 4;
+            if (Float.isNaN(bounds[b])
+                    || (bounds[b] <= maxX && bounds[b + 1] <= maxY && bounds[b + 2] >= x && bounds[b + 3] >= y)) {
+                commands.get(i).replay(target);
+            }
+        }
+        target.commitDeferred();
+    }
+
+    /**
+     * Replay the recorded operations onto the given drawing context, within
+     * the given budget. The operations replayed so far are committed when the
+     * budget gets exhausted.
+     *
+     * @param target drawing context.
+     * @param budget rendering budget.
+     * @return rendering status.
+     */
+    public RenderStatus replay(DrawingContext target, RenderBudget budget) {
+        RenderStatus ans = RenderStatus.COMPLETE;
+        for (int i = 0; i < commands.size(); i++) {
+            if (i % BUDGET_CHECK_INTERVAL == 0) {
+                ans = budget.check();
+                if (ans != RenderStatus.COMPLETE)
+                    break;
+            }
+            commands.get(i).replay(target);
+        }
+        target.commitDeferred();
+        return ans;
+    }
+
+    /**
+     * Replay the recorded operations onto the given drawing context, one
+     * rendering pass at a time. State changes are replayed in every pass, so
+     * that each operation is rendered with the same state as in a single pass
+     * replay. Note however that operations of different passes are not drawn
+     * in their original order, so that overlapping content (e.g. a block
+     * background covering earlier text) may differ from a single pass replay.
+     *
+     * @param target drawing context.
+     * @param listener listener notified after each pass, or null.
+     */
+    public void replay(DrawingContext target, PassListener listener) {
+        for (RenderPass p : RenderPass.values()) {
+            byte ordinal = (byte) p.ordinal();
+            for (int i = 0; i < commands.size(); i++) {
+                if (passes[i] < 0 || passes[i] == ordinal) {
+                    commands.get(i).replay(target);
+                }
+            }
+            target.commitDeferred();
+            if (listener != null)
+                listener.passCompleted(p);
+        }
+    }
+
+    /**
+     * Print progressively to the given GC, notifying the given listener
+     * after each pass.
+     *
+     * @param gc target GC.
+     * @param listener listener notified after each pass.
+     * @see #replay(DrawingContext, PassListener)
+     */
+    public void print(GC gc, PassListener listener) {
+        GCWrapper wrapper = new GCWrapper(gc);
+        try {
+            replay(wrapper, listener);
+        } finally {
+            wrapper.dispose();
+        }
+    }
+
+    @Override
+    public void print(GC gc) {
+        GCWrapper wrapper = new GCWrapper(gc);
+        try {
+            replay(wrapper);
+        } finally {
+            wrapper.dispose();
+        }
+    }
+
+    @Override
+    public RenderStatus print(GC gc, RenderBudget budget) {
+        GCWrapper wrapper = new GCWrapper(gc);
+        try {
+            return replay(wrapper, budget);
+        } finally {
+            wrapper.dispose();
+        }
+    }
+
+    @Override
+    public void setTransform(float[] transformValues) {
+        transform = transformValues;
+        add(target -> target.setTransform(transformValues));
+    }
+
+    @Override
+    public void setColor(RGBA rgba) {
+        color = rgba;
+        add(target -> target.setColor(rgba));
+    }
+
+    @Override
+    public void setFont(String name, int size) {
+        fontName = name;
+        fontSize = size;
+        add(target -> target.setFont(name, size));
+    }
+
+    @Override
+    public void setClipping(PathData data) {
+        PathData clipData = data == null ? null : copy(data);
+        clip = data == null ? 0 : ++clipCount;
+        add(target -> target.setClipping(clipData));
+    }
+
+    @Override
+    public void setLineAttributes(LineAttributes attributes) {
+        lineWidth = attributes == null ? 0 : attributes.width;
+        add(target -> target.setLineAttributes(attributes));
+    }
+
+    @Override
+    public void fillRectangle(float x, float y, float w, float h) {
+        add(target -> target.fillRectangle(x, y, w, h), x, y, x + w, y + h);
+        addOccluder(isOpaque(), new float[] { Math.min(x, x + w), Math.min(y, y + h), Math.max(x, x + w),
+                Math.max(y, y + h) });
+    }
+
+    @Override
+    public void drawRectangle(float x, float y, float w, float h) {
+        float lw = lineWidth / 2;
+        add(target -> target.drawRectangle(x, y, w, h), x - lw, y - lw, x + w + lw, y + h + lw);
+    }
+
+    @Override
+    public void drawLine(float x1, float y1, float x2, float y2) {
+        float lw = lineWidth / 2;
+        add(target -> target.drawLine(x1, y1, x2, y2), Math.min(x1, x2) - lw, Math.min(y1, y2) - lw,
+                Math.max(x1, x2) + lw, Math.max(y1, y2) + lw);
+    }
+
+    @Override
+    public void drawString(String s, float x, float y) {
+        GCWrapper.Metrics m = getFontMetrics();
+        float margin = getTextMargin(s);
+        add(target -> target.drawString(s, x, y), x - margin, y - margin, x + stringExtentWidth(s) + margin,
+                y + m.height + margin, RenderPass.TEXT);
+    }
+
+    @Override
+    public void drawStringAtBaseline(String s, float x, float baseline) {
+        GCWrapper.Metrics m = getFontMetrics();
+        float margin = getTextMargin(s);
+        add(target -> target.drawStringAtBaseline(s, x, baseline), x - margin, baseline - m.ascent - margin,
+                x + stringExtentWidth(s) + margin, baseline + m.descent + margin, RenderPass.TEXT);
+    }
+
+    //The system font used at replay time does not have exactly the same metrics as
+    //FOP's, so let's be generous: one em plus a quarter of the FOP width.
+    private float getTextMargin(String s) {
+        return fontSize / 1000f + stringExtentWidth(s) / 4;
+    }
+
+    @Override
+    public GCWrapper.Metrics getFontMetrics() {
+        Typeface tf = getTypeface();
+        float ascent = tf.getAscender(fontSize) / 1000000f;
+        float descent = -tf.getDescender(fontSize) / 1000000f;
+        return new GCWrapper.Metrics(0, ascent, descent, ascent + descent);
+    }
+
+    @Override
+    public float stringExtentWidth(String s) {
+        Typeface tf = getTypeface();
+        int width = 0;
+        for (int i = 0; i < s.length(); i++) {
+            width += tf.getWidth(tf.mapChar(s.charAt(i)), fontSize);
+        }
+        return width / 1000000f;
+    }
+
+    @Override
+    public Base14FontProvider.FontInfo getFontInfo(String name) {
+        return fonts.getFontInfo(name);
+    }
+
+    @Override
+    public float getResolution() {
+        return RESOLUTION;
+    }
+
+    @Override
+    public void drawImage(ImageData data, float x, float y) {
+        dataSize += data.data.length + (data.alphaData == null ? 0 : data.alphaData.length);
+        add(target -> target.drawImage(data, x, y), x, y, x + data.width, y + data.height, RenderPass.DECORATION);
+        boolean opaque = data.alphaData == null && data.alpha == -1 && data.transparentPixel == -1;
+        addOccluder(opaque, new float[] { x, y, x + data.width, y + data.height });
+    }
+
+    @Override
+    public void drawRasterised(Rasteriser rasteriser, float x, float y, float w, float h) {
+        add(target -> target.drawRasterised(rasteriser, x, y, w, h), Math.min(x, x + w), Math.min(y, y + h),
+                Math.max(x, x + w), Math.max(y, y + h), RenderPass.DECORATION);
+        //The rasterised content may be transparent.
+        addOccluder(false, null);
+    }
+
+    @Override
+    public void fillPattern(ImageData data, float x, float y, float w, float h, float tileX, float tileY, float tileW,
+            float tileH) {
+        dataSize += data.data.length + (data.alphaData == null ? 0 : data.alphaData.length);
+        add(target -> target.fillPattern(data, x, y, w, h, tileX, tileY, tileW, tileH), x, y, x + w, y + h);
+        boolean opaque = data.alphaData == null && data.alpha == -1 && data.transparentPixel == -1;
+        addOccluder(opaque, new float[] { Math.min(x, x + w), Math.min(y, y + h), Math.max(x, x + w),
+                Math.max(y, y + h) });
+    }
+
+    @Override
+    public void fillPath(PathData data) {
+        PathData path = copy(data);
+        dataSize += path.points.length * 4 + path.types.length;
+        add(target -> target.fillPath(path), path);
+        addOccluder(isOpaque(), isOpaque() ? getRectangles(path) : null);
+    }
+
+    private boolean isOpaque() {
+        return color != null && color.alpha == 255;
+    }
+
+    @Override
+    public void fillPathDeferred(PathData data) {
+        PathData path = copy(data);
+        dataSize += path.points.length * 4 + path.types.length;
+        add(target -> target.fillPathDeferred(path), path);
+    }
+
+    @Override
+    public void commitDeferred() {
+        add(target -> target.commitDeferred());
+    }
+
+    @Override
+    public void setPass(RenderPass renderPass) {
+        pass = renderPass;
+    }
+}
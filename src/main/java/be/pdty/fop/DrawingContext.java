@@ -0,0 +1,239 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.LineAttributes;
+import org.eclipse.swt.graphics.PathData;
+import org.eclipse.swt.graphics.RGBA;
+
+/**
+ * The drawing operations used by the SWTRenderer. The main implementation is
+ * the {@link GCWrapper}, which draws directly to an SWT GC. The
+ * {@link DisplayList} records the operations instead, so that the
+ * device-independent part of the rendering can be done on any thread and
+ * replayed later on the device thread.
+ */
+public interface DrawingContext {
+    /**
+     * Vector content turned into pixels on demand, at the resolution of the
+     * target it is drawn to.
+     */
+    public interface Rasteriser {
+        /**
+         * Rasterise the content at the given resolution.
+         *
+         * @param resolutionX number of device pixels per horizontal unit.
+         * @param resolutionY number of device pixels per vertical unit.
+         * @return image data, which may have fewer pixels than requested, or
+         *         null to draw nothing.
+         */
+        public ImageData rasterise(float resolutionX, float resolutionY);
+    }
+
+    /**
+     * Set the current transformation (on top of the initial transformation of
+     * the target).
+     *
+     * @param transformValues new transformation. Set to null to restore initial
+     *            transformation.
+     */
+    public void setTransform(float[] transformValues);
+
+    /**
+     * Set the color.
+     *
+     * @param rgba color.
+     */
+    public void setColor(RGBA rgba);
+
+    /**
+     * Set the Base14 font name and size.
+     *
+     * @param name Base14 font name.
+     * @param size font size.
+     */
+    public void setFont(String name, int size);
+
+    /**
+     * Set the clipping area.
+     *
+     * @param data clipping path data.
+     */
+    public void setClipping(PathData data);
+
+    /**
+     * Set the line attributes.
+     *
+     * @param attributes line attributes.
+     */
+    public void setLineAttributes(LineAttributes attributes);
+
+    /**
+     * Fill a rectangle with the given bounds.
+     *
+     * @param x x.
+     * @param y y.
+     * @param w width.
+     * @param h height.
+     */
+    public void fillRectangle(float x, float y, float w, float h);
+
+    /**
+     * Draw a rectangle with the given bounds.
+     *
+     * @param x x.
+     * @param y y.
+     * @param w width.
+     * @param h height.
+     */
+    public void drawRectangle(float x, float y, float w, float h);
+
+    /**
+     * Draw a line between the two given points.
+     *
+     * @param x1 x of first point.
+     * @param y1 y of first point.
+     * @param x2 x of second point.
+     * @param y2 y of second point.
+     */
+    public void drawLine(float x1, float y1, float x2, float y2);
+
+    /**
+     * Draw a string with its top-left corner at the given location.
+     *
+     * @param s string.
+     * @param x x.
+     * @param y y.
+     */
+    public void drawString(String s, float x, float y);
+
+    /**
+     * Draw a string on the given baseline, using the actual metrics of the
+     * font of the target.
+     *
+     * @param s string.
+     * @param x x.
+     * @param baseline baseline.
+     */
+    public void drawStringAtBaseline(String s, float x, float baseline);
+
+    /**
+     * Get the current font metrics.
+     *
+     * @return font metrics.
+     */
+    public GCWrapper.Metrics getFontMetrics();
+
+    /**
+     * Compute the string extend width.
+     *
+     * @param s string.
+     * @return width.
+     */
+    public float stringExtentWidth(String s);
+
+    /**
+     * Get the information (system name and style) for the given Base14 font
+     * name.
+     *
+     * @param name Base14 font name.
+     * @return font information.
+     */
+    public Base14FontProvider.FontInfo getFontInfo(String name);
+
+    /**
+     * Get the resolution of the target, i.e. the number of device pixels per
+     * unit with the initial transformation. This is used to rasterise vector
+     * content at the right resolution.
+     * 
+     * @return device pixels per unit.
+     */
+    public float getResolution();
+
+    /**
+     * Draw the given image data at the given position, one pixel per unit.
+     *
+     * @param data image data.
+     * @param x x.
+     * @param y y.
+     */
+    public void drawImage(ImageData data, float x, float y);
+
+    /**
+     * Draw vector content in the given rectangle, rasterised at the resolution
+     * of the target with the current transformation. The rasterised image is
+     * stretched to the rectangle.
+     *
+     * @param rasteriser content rasteriser.
+     * @param x x.
+     * @param y y.
+     * @param w width.
+     * @param h height.
+     */
+    public void drawRasterised(Rasteriser rasteriser, float x, float y, float w, float h);
+
+    /**
+     * Fill the given rectangle with the given image, repeated in both
+     * directions. One of the tiles occupies the given tile rectangle, the
+     * image being scaled to it.
+     *
+     * @param data image data.
+     * @param x x of the area to fill.
+     * @param y y of the area to fill.
+     * @param w width of the area to fill.
+     * @param h height of the area to fill.
+     * @param tileX x of a tile.
+     * @param tileY y of a tile.
+     * @param tileW width of a tile.
+     * @param tileH height of a tile.
+     */
+    public void fillPattern(ImageData data, float x, float y, float w, float h, float tileX, float tileY, float tileW,
+            float tileH);
+
+    /**
+     * Fill the given path, using the non-zero winding rule.
+     *
+     * @param data path data.
+     */
+    public void fillPath(PathData data);
+
+    /**
+     * Fill the given path, potentially deferring the actual drawing but no
+     * later than the next call to {@link #commitDeferred()}.
+     *
+     * @param data path data.
+     */
+    public void fillPathDeferred(PathData data);
+
+    /**
+     * Commit any pending deferred operations.
+     */
+    public void commitDeferred();
+
+    /**
+     * Hint the rendering pass of the following drawing operations, for
+     * targets supporting progressive rendering. The default implementation
+     * ignores the hint.
+     * 
+     * @param pass rendering pass, or null to let the target decide based on
+     *            the kind of operation.
+     */
+    public default void setPass(RenderPass pass) {
+        //Nothing to do by default.
+    }
+}
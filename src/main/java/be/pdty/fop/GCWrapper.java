@@ -16,9 +16,11 @@
 
 package be.pdty.fop;
 
+import java.awt.geom.Area;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,9 +31,11 @@ import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.graphics.FontMetrics;
 import org.eclipse.swt.graphics.GC;
 import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
 import org.eclipse.swt.graphics.LineAttributes;
 import org.eclipse.swt.graphics.Path;
 import org.eclipse.swt.graphics.PathData;
+import org.eclipse.swt.graphics.Pattern;
 import org.eclipse.swt.graphics.RGBA;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.graphics.Region;
@@ -69,7 +73,7 @@ import org.eclipse.swt.graphics.Transform;
  * manipulated it using a wrapper and before disposing this wrapper. For this
  * reason there is no getGC method.
  */
-public class GCWrapper {
+public class GCWrapper implements DrawingContext {
     private static final float PF = 200f;
 
     private GC gc;
@@ -78,10 +82,12 @@ public class GCWrapper {
     private float sy;
 
     private Base14FontProvider fontCache;
+    private MetricsCache metricsCache;
 
     private String fontName;
     private int fontSize;
     private boolean dirtyFont;
+    private MetricsCache.Entry metricsEntry;
 
     private RGBA color;
     private Color swtColor;
@@ -92,12 +98,16 @@ public class GCWrapper {
 
     //Expressed in the base transform
     private PathData clip;
+    private ClipKey clipKey;
     private boolean dirtyClip;
 
     private LineAttributes lineAttributes;
     private boolean dirtyLineAttributes;
 
     private Transform baseTransform;
+    private float[] baseElements;
+    //Reused when pushing the effective transform to the GC.
+    private Transform gcTransform;
     private Color baseForeground;
     private Color baseBackground;
     private Font baseFont;
@@ -109,9 +119,148 @@ public class GCWrapper {
 
     //Expressed in the base transform
     private Region baseClip;
+    //Bounds of the base clipping area, or null if it is not a plain rectangle.
+    private Rectangle baseClipRectangle;
 
-    //List of deferred paths, expressed in the base transform.
-    private Map<RGBA, List<PathData>> deferred = new HashMap<>();
+    //Native clipping paths, per clipping area. Only used when the base clipping area is rectangular.
+    private static final int MAX_CLIP_PATHS = 64;
+    private Map<ClipKey, Path> clipPaths;
+
+    //Identity of a clipping area expressed in the base transform, comparing by content.
+    private static class ClipKey {
+        private PathData data;
+        private int hash;
+
+        public ClipKey(PathData d) {
+            data = d;
+            hash = 31 * Arrays.hashCode(data.points) + Arrays.hashCode(data.types);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ClipKey))
+                return false;
+            ClipKey other = (ClipKey) obj;
+            if (data == other.data)
+                return true;
+            return hash == other.hash && Arrays.equals(data.points, other.data.points)
+                    && Arrays.equals(data.types, other.data.types);
+        }
+    }
+
+    private static final RGBA TRANSPARENT = new RGBA(0, 0, 0, 0);
+
+    //Batch key of deferred paths: the color and the clipping area (expressed in
+    //the base transform) that were active when the path was submitted.
+    private static class DeferredKey {
+        private RGBA color;
+        private ClipKey clip;
+        private int hash;
+
+        public DeferredKey(RGBA c, ClipKey cl) {
+            //No color set yet: like a null AWT color, see Convert.toRGBA.
+            color = c == null ? TRANSPARENT : c;
+            clip = cl;
+            hash = 31 * color.hashCode() + (clip == null ? 0 : clip.hashCode());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof DeferredKey))
+                return false;
+            DeferredKey other = (DeferredKey) obj;
+            if (hash != other.hash || !color.equals(other.color))
+                return false;
+            if (clip == null || other.clip == null)
+                return clip == other.clip;
+            return clip.equals(other.clip);
+        }
+    }
+
+    //Growable storage for deferred paths. Points are stored already transformed to the base transform
+    //and scaled by PF, ready to be handed over to SWT. Arenas are pooled so that their storage gets
+    //reused from one batch (and one page) to the other.
+    private static class PathArena {
+        private static final int MAX_POOLED = 16;
+        private static final int MAX_POOLED_POINTS = 1 << 20;
+        private static final ArrayDeque<PathArena> pool = new ArrayDeque<>();
+
+        private float[] points = new float[256];
+        private int pointCount;
+        private byte[] types = new byte[64];
+        private int typeCount;
+
+        public static PathArena obtain() {
+            synchronized (pool) {
+                PathArena ans = pool.poll();
+                return ans == null ? new PathArena() : ans;
+            }
+        }
+
+        public static void release(PathArena arena) {
+            arena.pointCount = 0;
+            arena.typeCount = 0;
+            if (arena.points.length > MAX_POOLED_POINTS)
+                return;
+            synchronized (pool) {
+                if (pool.size() < MAX_POOLED)
+                    pool.push(arena);
+            }
+        }
+
+        //Append the given path, applying the given affine transform (null for identity).
+        public void append(PathData data, float[] m) {
+            int np = data.points.length;
+            int nt = data.types.length;
+            if (pointCount + np > points.length)
+                points = Arrays.copyOf(points, Math.max(points.length * 2, pointCount + np));
+            if (typeCount + nt > types.length)
+                types = Arrays.copyOf(types, Math.max(types.length * 2, typeCount + nt));
+
+            float[] src = data.points;
+            float[] dst = points;
+            int o = pointCount;
+            if (m == null) {
+                for (int i = 0; i < np; i += 2) {
+                    dst[o++] = src[i] * PF;
+                    dst[o++] = src[i + 1] * PF;
+                }
+            } else {
+                float a = m[0] * PF, b = m[1] * PF, c = m[2] * PF, d = m[3] * PF, e = m[4] * PF, f = m[5] * PF;
+                for (int i = 0; i < np; i += 2) {
+                    float x = src[i];
+                    float y = src[i + 1];
+                    dst[o++] = a * x + c * y + e;
+                    dst[o++] = b * x + d * y + f;
+                }
+            }
+            pointCount = o;
+            System.arraycopy(data.types, 0, types, typeCount, nt);
+            typeCount += nt;
+        }
+
+        //SWT consumes points according to the types, so only the types need to be exactly sized.
+        public PathData toPathData() {
+            PathData ans = new PathData();
+            ans.points = points;
+            ans.types = typeCount == types.length ? types : Arrays.copyOf(types, typeCount);
+            return ans;
+        }
+    }
+
+    //Deferred paths, expressed in the base transform and batched per color and clipping area.
+    //Batches are kept in submission order so that the flush order is stable.
+    private Map<DeferredKey, PathArena> deferred = new LinkedHashMap<>();
 
     /**
      * Create a new GCWrapper.
@@ -119,6 +268,16 @@ public class GCWrapper {
      * @param gcToWrap GC to wrap.
      */
     public GCWrapper(GC gcToWrap) {
+        this(gcToWrap, RenderQuality.NORMAL);
+    }
+
+    /**
+     * Create a new GCWrapper with the given quality profile.
+     * 
+     * @param gcToWrap GC to wrap.
+     * @param quality rendering quality.
+     */
+    public GCWrapper(GC gcToWrap, RenderQuality quality) {
         disposed = false;
         gc = gcToWrap;
 
@@ -126,12 +285,36 @@ public class GCWrapper {
         sy = gc.getDevice().getDPI().y / 72.0f;
 
         fontCache = new Base14FontProvider(gcToWrap.getDevice());
+        metricsCache = MetricsCache.get(gcToWrap.getDevice());
 
         baseTransform = new Transform(gc.getDevice());
         gc.getTransform(baseTransform);
+        baseElements = new float[6];
+        baseTransform.getElements(baseElements);
 
         baseClip = new Region(gc.getDevice());
         gc.getClipping(baseClip);
+        Rectangle bounds = baseClip.getBounds();
+        Region remainder = new Region(gc.getDevice());
+        try {
+            remainder.add(bounds);
+            remainder.subtract(baseClip);
+            baseClipRectangle = remainder.isEmpty() ? bounds : null;
+        } finally {
+            remainder.dispose();
+        }
+        clipPaths = new LinkedHashMap<ClipKey, Path>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ClipKey, Path> eldest) {
+                if (size() > MAX_CLIP_PATHS) {
+                    eldest.getValue().dispose();
+                    return true;
+                }
+                return false;
+            }
+        };
 
         baseFont = gc.getFont();
         baseForeground = gc.getForeground();
@@ -140,12 +323,13 @@ public class GCWrapper {
 
         baseAdvanced = gc.getAdvanced();
         gc.setAdvanced(true);
+        boolean draft = quality == RenderQuality.DRAFT;
         baseAntialias = gc.getAntialias();
-        gc.setAntialias(SWT.ON);
+        gc.setAntialias(draft ? SWT.OFF : SWT.ON);
         baseTextAntialias = gc.getTextAntialias();
-        gc.setTextAntialias(SWT.ON);
+        gc.setTextAntialias(draft ? SWT.OFF : SWT.ON);
         baseInterpolation = gc.getInterpolation();
-        gc.setInterpolation(SWT.HIGH);
+        gc.setInterpolation(draft ? SWT.NONE : SWT.HIGH);
 
         fontName = ""; //$NON-NLS-1$
         fontSize = 0;
@@ -178,14 +362,31 @@ public class GCWrapper {
         return scale(data, PF, PF);
     }
 
-    private static void transformPath(PathData data, Transform transform) {
-        float[] f = new float[2];
-        for (int i = 0; i < data.points.length; i += 2) {
-            f[0] = data.points[i];
-            f[1] = data.points[i + 1];
-            transform.transform(f);
-            data.points[i] = f[0];
-            data.points[i + 1] = f[1];
+    //Transform matrices are kept as six floats, as for SWT's Transform elements:
+    //x' = m[0] * x + m[2] * y + m[4] and y' = m[1] * x + m[3] * y + m[5].
+
+    //Compute l x r, that is applying r first and then l.
+    private static float[] multiply(float[] l, float[] r) {
+        return new float[] {
+                l[0] * r[0] + l[2] * r[1],
+                l[1] * r[0] + l[3] * r[1],
+                l[0] * r[2] + l[2] * r[3],
+                l[1] * r[2] + l[3] * r[3],
+                l[0] * r[4] + l[2] * r[5] + l[4],
+                l[1] * r[4] + l[3] * r[5] + l[5] };
+    }
+
+    private static void transformPoints(float[] src, float[] dst, float[] m) {
+        if (m == null) {
+            System.arraycopy(src, 0, dst, 0, src.length);
+            return;
+        }
+        float a = m[0], b = m[1], c = m[2], d = m[3], e = m[4], f = m[5];
+        for (int i = 0; i < src.length; i += 2) {
+            float x = src[i];
+            float y = src[i + 1];
+            dst[i] = a * x + c * y + e;
+            dst[i + 1] = b * x + d * y + f;
         }
     }
 
@@ -296,6 +497,52 @@ public class GCWrapper {
         }
     }
 
+    //Get the native clipping path for the current clipping area, intersected with the
+    //(rectangular) base clipping area.
+    private Path getClipPath() {
+        Path ans = clipPaths.get(clipKey);
+        if (ans != null)
+            return ans;
+
+        PathData data = scale(clip, sx, sy);
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < data.points.length; i += 2) {
+            minX = Math.min(minX, data.points[i]);
+            maxX = Math.max(maxX, data.points[i]);
+            minY = Math.min(minY, data.points[i + 1]);
+            maxY = Math.max(maxY, data.points[i + 1]);
+        }
+        Rectangle b = baseClipRectangle;
+        if (minX < b.x || minY < b.y || maxX > b.x + b.width || maxY > b.y + b.height) {
+            //Not entirely within the base clipping area: intersect it, using AWT geometry.
+            Area area = new Area(Convert.toShape(data));
+            area.intersect(new Area(new java.awt.Rectangle(b.x, b.y, b.width, b.height)));
+            data = Convert.toPathData(area);
+        }
+
+        ans = new Path(gc.getDevice(), data);
+        clipPaths.put(clipKey, ans);
+        return ans;
+    }
+
+    //Get the transformation from the current user space to device pixels.
+    private float[] getDeviceTransform() {
+        float[] m = new float[] {
+                baseElements[0] * sx,
+                baseElements[1] * sx,
+                baseElements[2] * sy,
+                baseElements[3] * sy,
+                baseElements[4],
+                baseElements[5] };
+        if (transform != null) {
+            m = multiply(m, transform);
+        }
+        return m;
+    }
+
     private void commit() {
         if (dirtyFont) {
             Font font = fontCache.getFont(fontName, (int) (PF * fontSize / (1000.0f * sy)));
@@ -315,50 +562,38 @@ public class GCWrapper {
 
         if (dirtyClip) {
             // Both the base and the requested clipping regions are expressed in the base transform
-            Transform save = new Transform(gc.getDevice());
-            try {
-                gc.getTransform(save);
-                gc.setTransform(baseTransform);
-
-                if (clip != null) {
-                    Region newRegion = new Region(gc.getDevice());
-                    try {
-                        pathToRegion(scale(clip, sx, sy), newRegion);
-                        if (baseClip != null) {
-                            newRegion.intersect(baseClip);
-                        }
-                        gc.setClipping(newRegion);
-                    } finally {
-                        newRegion.dispose();
+            gc.setTransform(baseTransform);
+
+            if (clip != null && baseClipRectangle != null) {
+                gc.setClipping(getClipPath());
+            } else if (clip != null) {
+                Region newRegion = new Region(gc.getDevice());
+                try {
+                    pathToRegion(scale(clip, sx, sy), newRegion);
+                    if (baseClip != null) {
+                        newRegion.intersect(baseClip);
                     }
-                } else {
-                    gc.setClipping(baseClip);
+                    gc.setClipping(newRegion);
+                } finally {
+                    newRegion.dispose();
                 }
-
-                gc.setTransform(save);
-                dirtyClip = false;
-            } finally {
-                save.dispose();
+            } else {
+                gc.setClipping(baseClip);
             }
 
+            dirtyClip = false;
+            //The GC transform has been changed to set the clipping area, push ours again.
+            dirtyTransform = true;
         }
 
         if (dirtyTransform) {
-            Transform swtTransform = new Transform(gc.getDevice());
-            Transform userTransform = transform == null ? new Transform(gc.getDevice())
-                    : new Transform(gc.getDevice(), transform);
-            try {
-                swtTransform.multiply(baseTransform);
-                swtTransform.scale(sx, sy);
-                swtTransform.multiply(userTransform);
-                swtTransform.scale(1.0f / PF, 1.0f / PF);
-
-                gc.setTransform(swtTransform);
-                dirtyTransform = false;
-            } finally {
-                userTransform.dispose();
-                swtTransform.dispose();
+            float[] m = getDeviceTransform();
+            if (gcTransform == null) {
+                gcTransform = new Transform(gc.getDevice());
             }
+            gcTransform.setElements(m[0] / PF, m[1] / PF, m[2] / PF, m[3] / PF, m[4], m[5]);
+            gc.setTransform(gcTransform);
+            dirtyTransform = false;
         }
 
         if (dirtyLineAttributes) {
@@ -395,10 +630,18 @@ public class GCWrapper {
         gc.setTransform(baseTransform);
         baseTransform.dispose();
         baseTransform = null;
+        if (gcTransform != null) {
+            gcTransform.dispose();
+            gcTransform = null;
+        }
 
         gc.setClipping(baseClip);
         baseClip.dispose();
         baseClip = null;
+        for (Path path : clipPaths.values()) {
+            path.dispose();
+        }
+        clipPaths.clear();
 
         gc.setForeground(baseForeground);
         baseForeground = null;
@@ -442,6 +685,7 @@ public class GCWrapper {
      * @param transformValues new transformation. Set to null to restore initial
      *            transformation.
      */
+    @Override
     public void setTransform(float[] transformValues) {
         if (transformValues == null && transform != null) {
             transform = null;
@@ -457,6 +701,7 @@ public class GCWrapper {
      * 
      * @param rgba color.
      */
+    @Override
     public void setColor(RGBA rgba) {
         if (color == null || !color.equals(rgba)) {
             color = rgba;
@@ -470,11 +715,13 @@ public class GCWrapper {
      * @param name Base14 font name.
      * @param size font size.
      */
+    @Override
     public void setFont(String name, int size) {
         if (fontName == null || !fontName.equals(name) || fontSize != size) {
             fontName = name;
             fontSize = size;
             dirtyFont = true;
+            metricsEntry = null;
         }
     }
 
@@ -483,6 +730,7 @@ public class GCWrapper {
      * 
      * @param data clipping path data.
      */
+    @Override
     public void setClipping(PathData data) {
         if (data == null) {
             if (clip == null)
@@ -493,23 +741,22 @@ public class GCWrapper {
         }
 
         //Let's transform the requested clipping area to the base transform
-        Transform tmp = new Transform(gc.getDevice(), transform);
-        try {
-            PathData copy = new PathData();
-            copy.points = new float[data.points.length];
-            copy.types = new byte[data.types.length];
-            for (int i = 0; i < data.points.length; i++)
-                copy.points[i] = data.points[i];
-            for (int i = 0; i < data.types.length; i++)
-                copy.types[i] = data.types[i];
-            transformPath(copy, tmp);
-
-            if (clip == null || !Arrays.equals(clip.points, copy.points) || !Arrays.equals(clip.types, copy.types)) {
-                clip = copy;
-                dirtyClip = true;
-            }
-        } finally {
-            tmp.dispose();
+        PathData copy = new PathData();
+        copy.points = new float[data.points.length];
+        copy.types = data.types.clone();
+        transformPoints(data.points, copy.points, transform);
+        setBaseClipping(copy);
+    }
+
+    //Set the clipping area, already expressed in the base transform.
+    private void setBaseClipping(PathData data) {
+        if (data == clip)
+            return;
+        if (data == null || clip == null || !Arrays.equals(clip.points, data.points)
+                || !Arrays.equals(clip.types, data.types)) {
+            clip = data;
+            clipKey = data == null ? null : new ClipKey(data);
+            dirtyClip = true;
         }
     }
 
@@ -518,6 +765,7 @@ public class GCWrapper {
      * 
      * @param attributes line attributes.
      */
+    @Override
     public void setLineAttributes(LineAttributes attributes) {
         if (lineAttributes == null || !lineAttributes.equals(attributes)) {
             lineAttributes = attributes;
@@ -533,6 +781,7 @@ public class GCWrapper {
      * @param w width.
      * @param h height.
      */
+    @Override
     public void fillRectangle(float x, float y, float w, float h) {
         commit();
         gc.fillRectangle((int) (x * PF), (int) (y * PF), (int) (w * PF), (int) (h * PF));
@@ -546,6 +795,7 @@ public class GCWrapper {
      * @param w width.
      * @param h height.
      */
+    @Override
     public void drawRectangle(float x, float y, float w, float h) {
         commit();
         gc.drawRectangle((int) (x * PF), (int) (y * PF), (int) (w * PF), (int) (h * PF));
@@ -559,6 +809,7 @@ public class GCWrapper {
      * @param x2 x of second point.
      * @param y2 y of second point.
      */
+    @Override
     public void drawLine(float x1, float y1, float x2, float y2) {
         commit();
         gc.drawLine((int) (x1 * PF), (int) (y1 * PF), (int) (x2 * PF), (int) (y2 * PF));
@@ -571,11 +822,18 @@ public class GCWrapper {
      * @param x x.
      * @param y y.
      */
+    @Override
     public void drawString(String s, float x, float y) {
         commit();
         gc.drawString(s, (int) (x * PF), (int) (y * PF), true);
     }
 
+    @Override
+    public void drawStringAtBaseline(String s, float x, float baseline) {
+        Metrics metrics = getFontMetrics();
+        drawString(s, x, baseline - metrics.leading - metrics.ascent);
+    }
+
     /**
      * Get the font provider using by this GC. Note that this provider will only
      * remain valid as long as this wrapper is not disposed.
@@ -586,26 +844,32 @@ public class GCWrapper {
         return fontCache;
     }
 
+    @Override
+    public Base14FontProvider.FontInfo getFontInfo(String name) {
+        return fontCache.getFontInfo(name);
+    }
+
     /**
      * Font metrics information (as SWT won't let us create our own instances).
+     * Metrics are cached and shared, and are therefore immutable.
      */
     public static class Metrics {
         /**
          * Leading.
          */
-        public float leading;
+        public final float leading;
         /**
          * Ascent.
          */
-        public float ascent;
+        public final float ascent;
         /**
          * Descent.
          */
-        public float descent;
+        public final float descent;
         /**
          * Height.
          */
-        public float height;
+        public final float height;
 
         /**
          * Create a new Metrics.
@@ -623,28 +887,62 @@ public class GCWrapper {
         }
     }
 
+    private MetricsCache.Entry getMetricsEntry() {
+        if (metricsEntry == null) {
+            metricsEntry = metricsCache.getEntry(fontName, fontSize);
+        }
+        return metricsEntry;
+    }
+
     /**
-     * Get the current font metrics.
+     * Get the current font metrics. Metrics are cached per font and size, so
+     * that only the first call for a given font needs a native round-trip.
      * 
      * @return font metrics.
      */
+    @Override
     public Metrics getFontMetrics() {
-        commit();
-        //Workaround SWT bug 319125
-        gc.setFont(gc.getFont());
-        FontMetrics fm = gc.getFontMetrics();
-        return new Metrics(fm.getLeading() / PF, fm.getAscent() / PF, fm.getDescent() / PF, fm.getHeight() / PF);
+        MetricsCache.Entry entry = getMetricsEntry();
+        Metrics ans = entry.getMetrics();
+        if (ans == null) {
+            commit();
+            //Workaround SWT bug 319125
+            gc.setFont(gc.getFont());
+            FontMetrics fm = gc.getFontMetrics();
+            ans = new Metrics(fm.getLeading() / PF, fm.getAscent() / PF, fm.getDescent() / PF, fm.getHeight() / PF);
+            entry.setMetrics(ans);
+        }
+        return ans;
     }
 
     /**
-     * Compute the string extend width.
+     * Compute the string extend width. The width is computed from cached
+     * character advances whenever possible, falling back to a native
+     * measurement for the characters that are not known yet.
      * 
      * @param s string.
      * @return width.
      */
+    @Override
     public float stringExtentWidth(String s) {
-        commit();
-        return gc.stringExtent(s).x / PF;
+        if (!MetricsCache.isAdditive(s)) {
+            commit();
+            return gc.stringExtent(s).x / PF;
+        }
+
+        MetricsCache.Entry entry = getMetricsEntry();
+        float ans = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            float advance = entry.getAdvance(c);
+            if (Float.isNaN(advance)) {
+                commit();
+                advance = gc.getAdvanceWidth(c) / PF;
+                entry.setAdvance(c, advance);
+            }
+            ans += advance;
+        }
+        return ans;
     }
 
     /**
@@ -661,13 +959,96 @@ public class GCWrapper {
                 (int) (b.height * PF));
     }
 
+    @Override
+    public float getResolution() {
+        float det = baseElements[0] * baseElements[3] - baseElements[1] * baseElements[2];
+        return (float) Math.sqrt(Math.abs(det) * sx * sy);
+    }
+
+    @Override
+    public void drawImage(ImageData data, float x, float y) {
+        Image image = new Image(gc.getDevice(), data);
+        try {
+            drawImage(image, x, y);
+        } finally {
+            image.dispose();
+        }
+    }
+
+    @Override
+    public void drawRasterised(Rasteriser rasteriser, float x, float y, float w, float h) {
+        float[] m = getDeviceTransform();
+        ImageData data = rasteriser.rasterise((float) Math.hypot(m[0], m[1]), (float) Math.hypot(m[2], m[3]));
+        if (data == null)
+            return;
+
+        float[] oldTransform = transform;
+        float[] t = new float[] { w / data.width, 0, 0, h / data.height, x, y };
+        setTransform(oldTransform == null ? t : multiply(oldTransform, t));
+        drawImage(data, 0, 0);
+        setTransform(oldTransform);
+    }
+
+    /**
+     * Fill the given rectangle with the given image, repeated in both
+     * directions. The image is scaled once to the size of a tile in device
+     * pixels and turned into a pattern, which is cached per device so that
+     * the same repeated background can be filled in one operation on every
+     * page.
+     * 
+     * @param data image data.
+     * @param x x of the area to fill.
+     * @param y y of the area to fill.
+     * @param w width of the area to fill.
+     * @param h height of the area to fill.
+     * @param tileX x of a tile.
+     * @param tileY y of a tile.
+     * @param tileW width of a tile.
+     * @param tileH height of a tile.
+     */
+    @Override
+    public void fillPattern(ImageData data, float x, float y, float w, float h, float tileX, float tileY, float tileW,
+            float tileH) {
+        if (tileW <= 0 || tileH <= 0)
+            return;
+        commit();
+        float[] m = getDeviceTransform();
+        int pw = Math.max(1, Math.round(tileW * (float) Math.hypot(m[0], m[1])));
+        int ph = Math.max(1, Math.round(tileH * (float) Math.hypot(m[2], m[3])));
+        Pattern pattern = PatternCache.get(gc.getDevice()).getPattern(gc.getDevice(), data, pw, ph);
+
+        //The pattern is laid out in user space, from its origin: work in tile pixels.
+        float fx = tileW / pw;
+        float fy = tileH / ph;
+        m = multiply(m, new float[] { fx, 0, 0, fy, tileX, tileY });
+        if (gcTransform == null) {
+            gcTransform = new Transform(gc.getDevice());
+        }
+        gcTransform.setElements(m[0], m[1], m[2], m[3], m[4], m[5]);
+        gc.setTransform(gcTransform);
+        dirtyTransform = true;
+
+        Path path = new Path(gc.getDevice());
+        try {
+            path.addRectangle((x - tileX) / fx, (y - tileY) / fy, w / fx, h / fy);
+            gc.setBackgroundPattern(pattern);
+            gc.fillPath(path);
+        } finally {
+            gc.setBackgroundPattern(null);
+            path.dispose();
+        }
+    }
+
     /**
      * Fill the given path.
      * 
      * @param data path data.
      */
+    @Override
     public void fillPath(PathData data) {
         commit();
+        //Like deferred paths, so that overlapping sub-paths add up.
+        gc.setFillRule(SWT.FILL_WINDING);
         Path path = new Path(gc.getDevice(), scale(data));
         try {
             gc.fillPath(path);
@@ -679,99 +1060,58 @@ public class GCWrapper {
     /**
      * Fill the given path, potentially deferring the actual drawing but no
      * later than the next call to {@link #commitDeferred()}. This is useful to
-     * combine multiple shapes into one single drawing operation.
+     * combine multiple shapes into one single drawing operation. Deferred
+     * paths are batched per color and clipping area, so that they can be
+     * accumulated for a whole page even when the clipping area changes in
+     * between.
      * 
      * @param data path data.
      */
+    @Override
     public void fillPathDeferred(PathData data) {
-        if (clip != null) {
-            fillPath(data);
-            return;
-        }
-        List<PathData> list = deferred.get(color);
-        if (list == null) {
-            list = new ArrayList<>();
-            deferred.put(color, list);
+        DeferredKey key = new DeferredKey(color, clipKey);
+        PathArena arena = deferred.get(key);
+        if (arena == null) {
+            arena = PathArena.obtain();
+            deferred.put(key, arena);
         }
-        PathData copy = new PathData();
-        copy.points = new float[data.points.length];
-        copy.types = new byte[data.types.length];
-        for (int i = 0; i < data.points.length; i++)
-            copy.points[i] = data.points[i];
-        for (int i = 0; i < data.types.length; i++)
-            copy.types[i] = data.types[i];
-
-        Transform tmp = new Transform(gc.getDevice(), transform);
-        try {
-            transformPath(copy, tmp);
-        } finally {
-            tmp.dispose();
-        }
-
-        list.add(copy);
+        arena.append(data, transform);
     }
 
     /**
      * Commit any pending deferred operations.
      */
+    @Override
     public void commitDeferred() {
+        if (deferred.isEmpty())
+            return;
+
         float[] oldTransform = transform;
         RGBA oldColor = color;
         PathData oldClipping = clip;
         setTransform(null);
-        setClipping(null);
-
-        for (Map.Entry<RGBA, List<PathData>> entry : deferred.entrySet()) {
-            //Alternative implementation
-
-            /*List<PathData> list=entry.getValue();
-              Region region=new Region(gc.getDevice());
-              try {
-                
-                for(PathData data:list) {
-            data=scale(data);
-            pathToRegion(data,region);
-                }
-                setColor(entry.getKey());
-                commit();
-                gc.setClipping(region);
-                gc.fillRectangle(region.getBounds());
-              } finally {
-                region.dispose();
-              }
-              */
-
-            int totalPoints = 0;
-            int totalTypes = 0;
-            List<PathData> list = entry.getValue();
-            for (PathData data : list) {
-                totalPoints += data.points.length;
-                totalTypes += data.types.length;
-            }
-            float[] points = new float[totalPoints];
-            byte[] types = new byte[totalTypes];
-            int currentPoint = 0;
-            int currentType = 0;
-            for (PathData data : list) {
-                for (int i = 0; i < data.points.length; i++)
-                    points[currentPoint++] = data.points[i];
-                for (int i = 0; i < data.types.length; i++)
-                    types[currentType++] = data.types[i];
-            }
 
-            setColor(entry.getKey());
-            PathData data = new PathData();
-            data.points = points;
-            data.types = types;
+        for (Map.Entry<DeferredKey, PathArena> entry : deferred.entrySet()) {
+            PathArena arena = entry.getValue();
+            setColor(entry.getKey().color);
+            ClipKey batchClip = entry.getKey().clip;
+            setBaseClipping(batchClip == null ? null : batchClip.data);
+            commit();
             gc.setFillRule(SWT.FILL_WINDING);
-            fillPath(data);
-
+            Path path = new Path(gc.getDevice(), arena.toPathData());
+            try {
+                gc.fillPath(path);
+            } finally {
+                path.dispose();
+            }
+            PathArena.release(arena);
         }
         deferred.clear();
 
         setTransform(oldTransform);
-        setClipping(oldClipping);
-        setColor(oldColor);
+        setBaseClipping(oldClipping);
+        if (oldColor != null)
+            setColor(oldColor);
     }
 
     /**
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.swt.graphics.ImageData;
+
+/**
+ * Least recently used cache of image data, bounded by the memory used by the
+ * pixels rather than by a number of images, so that a few large images cannot
+ * use up the heap. Images larger than the whole cache are not kept.
+ *
+ * This class is thread-safe.
+ */
+public class ImageDataCache {
+    private long maxBytes;
+    private long bytes;
+    private Map<String, ImageData> entries;
+
+    /**
+     * Create a new ImageDataCache.
+     *
+     * @param maximumBytes maximum memory used by the cached pixels, in bytes.
+     */
+    public ImageDataCache(long maximumBytes) {
+        maxBytes = maximumBytes;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Get the memory used by the pixels of the given image data.
+     *
+     * @param data image data.
+     * @return size in bytes.
+     */
+    public static long sizeOf(ImageData data) {
+        return data.data.length + (data.alphaData == null ? 0 : data.alphaData.length);
+    }
+
+    /**
+     * Get the image data cached under the given key.
+     *
+     * @param key key.
+     * @return image data, or null if not cached.
+     */
+    public synchronized ImageData get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Cache the given image data, evicting the least recently used images if
+     * needed.
+     *
+     * @param key key.
+     * @param data image data.
+     */
+    public synchronized void put(String key, ImageData data) {
+        long size = sizeOf(data);
+        ImageData old = entries.remove(key);
+        if (old != null)
+            bytes -= sizeOf(old);
+        if (size > maxBytes)
+            return;
+
+        entries.put(key, data);
+        bytes += size;
+        Iterator<ImageData> it = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= sizeOf(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * Forget about all cached images.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+}
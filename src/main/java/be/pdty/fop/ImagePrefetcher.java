@@ -0,0 +1,435 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.fop.apps.FOUserAgent;
+import org.apache.fop.area.Area;
+import org.apache.fop.area.BlockParent;
+import org.apache.fop.area.BodyRegion;
+import org.apache.fop.area.LineArea;
+import org.apache.fop.area.MainReference;
+import org.apache.fop.area.Page;
+import org.apache.fop.area.PageViewport;
+import org.apache.fop.area.RegionReference;
+import org.apache.fop.area.RegionViewport;
+import org.apache.fop.area.Span;
+import org.apache.fop.area.Trait;
+import org.apache.fop.area.inline.Image;
+import org.apache.fop.area.inline.InlineParent;
+import org.apache.fop.area.inline.InlineViewport;
+import org.apache.fop.datatypes.URISpecification;
+import org.apache.fop.fo.Constants;
+import org.apache.xmlgraphics.image.loader.ImageException;
+import org.apache.xmlgraphics.image.loader.ImageFlavor;
+import org.apache.xmlgraphics.image.loader.ImageInfo;
+import org.apache.xmlgraphics.image.loader.ImageManager;
+import org.apache.xmlgraphics.image.loader.ImageSessionContext;
+import org.apache.xmlgraphics.image.loader.ImageSize;
+import org.apache.xmlgraphics.image.loader.impl.ImageGraphics2D;
+import org.apache.xmlgraphics.image.loader.impl.ImageRendered;
+import org.apache.xmlgraphics.image.loader.util.ImageUtil;
+import org.eclipse.swt.graphics.ImageData;
+
+/**
+ * Loads the images of the pages as soon as they are laid out, so that they are
+ * ready by the time the pages are rendered. Images are loaded, decoded and
+ * converted to SWT image data on a small pool of daemon threads, and kept in a
+ * cache keyed by URI and bounded by the memory of the decoded images. Graphics2D
+ * images (e.g. SVG) are also rasterised at the size they are laid out at, using
+ * the resolution they were last drawn at.
+ *
+ * This class is thread-safe.
+ */
+public class ImagePrefetcher {
+    //Memory used by the loaded images, and by the rasterised Graphics2D images, and maximum rasterised size.
+    private static final long MAX_IMAGE_BYTES = 256L * 1024 * 1024;
+    private static final long MAX_RASTER_BYTES = 128L * 1024 * 1024;
+    private static final int MAX_RASTER_SIZE = 4096;
+    private static final int[] REGIONS = new int[] { Constants.FO_REGION_BODY, Constants.FO_REGION_BEFORE,
+            Constants.FO_REGION_AFTER, Constants.FO_REGION_START, Constants.FO_REGION_END };
+
+    /**
+     * A loaded image.
+     */
+    public static class PreparedImage {
+        /**
+         * Image information.
+         */
+        public ImageInfo info;
+
+        /**
+         * Loaded image, in one of the requested flavors.
+         */
+        public org.apache.xmlgraphics.image.loader.Image image;
+
+        /**
+         * Converted image data for rendered images, null for other kinds of
+         * images.
+         */
+        public ImageData data;
+    }
+
+    //Loading of an image, which keeps track of the memory used by the image once loaded.
+    private class Load extends FutureTask<PreparedImage> {
+        private String url;
+        private long size;
+
+        public Load(String u) {
+            super(() -> load(u));
+            url = u;
+        }
+
+        @Override
+        protected void done() {
+            if (!isCancelled())
+                loaded(this);
+        }
+    }
+
+    private FOUserAgent userAgent;
+    private ImageFlavor[] flavors;
+    private ThreadPoolExecutor executor;
+    private Map<String, Load> images;
+    private long bytes;
+    private ImageDataCache rasters;
+    //Resolution at which Graphics2D images were last rasterised (x and y pixels per point), null if none yet.
+    private volatile float[] resolution;
+
+    /**
+     * Create a new ImagePrefetcher.
+     * 
+     * @param agent user agent providing the image manager.
+     * @param imageFlavors image flavors to request.
+     */
+    public ImagePrefetcher(FOUserAgent agent, ImageFlavor[] imageFlavors) {
+        userAgent = agent;
+        flavors = imageFlavors;
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+        executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread ans = new Thread(r, "SWTRenderer image loader"); //$NON-NLS-1$
+            ans.setDaemon(true);
+            return ans;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        images = new LinkedHashMap<>(16, 0.75f, true);
+        rasters = new ImageDataCache(MAX_RASTER_BYTES);
+    }
+
+    /**
+     * Start loading all the images referenced by the given page.
+     * 
+     * @param page page viewport.
+     */
+    public void prefetch(PageViewport page) {
+        Page p = page.getPage();
+        if (p == null)
+            return;
+        for (int region : REGIONS) {
+            RegionViewport viewport = p.getRegionViewport(region);
+            if (viewport != null) {
+                collect(viewport);
+                collect(viewport.getRegionReference());
+            }
+        }
+    }
+
+    //Walk the area tree, looking for images and background images.
+    private void collect(Area area) {
+        if (area == null)
+            return;
+
+        Trait.Background back = (Trait.Background) area.getTrait(Trait.BACKGROUND);
+        if (back != null && back.getURL() != null)
+            prefetch(back.getURL());
+
+        if (area instanceof Image) {
+            prefetch(((Image) area).getURL());
+        } else if (area instanceof InlineViewport) {
+            InlineViewport viewport = (InlineViewport) area;
+            if (viewport.getContent() instanceof Image) {
+                Rectangle2D pos = viewport.getContentPosition();
+                prefetch(((Image) viewport.getContent()).getURL(), pos.getWidth() / 1000, pos.getHeight() / 1000);
+            } else {
+                collect(viewport.getContent());
+            }
+        } else if (area instanceof InlineParent) {
+            collectAll(((InlineParent) area).getChildAreas());
+        } else if (area instanceof LineArea) {
+            collectAll(((LineArea) area).getInlineAreas());
+        } else if (area instanceof BlockParent) {
+            collectAll(((BlockParent) area).getChildAreas());
+        } else if (area instanceof RegionReference) {
+            collectAll(((RegionReference) area).getBlocks());
+            if (area instanceof BodyRegion) {
+                BodyRegion body = (BodyRegion) area;
+                collect(body.getBeforeFloat());
+                collect(body.getFootnote());
+                MainReference main = body.getMainReference();
+                if (main != null) {
+                    for (Span span : main.getSpans()) {
+                        for (int i = 0; i < span.getColumnCount(); i++) {
+                            collect(span.getNormalFlow(i));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void collectAll(List<?> areas) {
+        if (areas == null)
+            return;
+        for (Object child : areas) {
+            collect((Area) child);
+        }
+    }
+
+    /**
+     * Start loading the given image, unless it is already loaded or being
+     * loaded.
+     * 
+     * @param uri image URI.
+     */
+    public void prefetch(String uri) {
+        if (executor.isShutdown())
+            return;
+        String url = URISpecification.getURL(uri);
+        Load task;
+        synchronized (images) {
+            if (images.containsKey(url))
+                return;
+            task = new Load(url);
+            images.put(url, task);
+        }
+        executor.execute(task);
+    }
+
+    /**
+     * Start loading the given image, unless it is already loaded or being
+     * loaded, and rasterise it at the given size if it is a Graphics2D image.
+     * The image is rasterised at the last resolution passed to
+     * {@link #getRaster(String, ImageGraphics2D, float, float, float, float)},
+     * if any.
+     * 
+     * @param uri image URI.
+     * @param width width of the image on the page, in points.
+     * @param height height of the image on the page, in points.
+     */
+    public void prefetch(String uri, double width, double height) {
+        prefetch(uri);
+        float[] r = resolution;
+        if (r == null || width <= 0 || height <= 0 || executor.isShutdown())
+            return;
+
+        String url = URISpecification.getURL(uri);
+        executor.execute(() -> {
+            try {
+                PreparedImage prepared = get(url);
+                if (prepared.image instanceof ImageGraphics2D) {
+                    getRaster(url, (ImageGraphics2D) prepared.image, (float) width, (float) height, r[0], r[1]);
+                }
+            } catch (ImageException | IOException | RuntimeException ex) {
+                //Reported when the image gets drawn.
+            }
+        });
+    }
+
+    /**
+     * Get the given image, waiting for it if it is being loaded, or loading it
+     * in the calling thread if it is not.
+     * 
+     * @param uri image URI.
+     * @return loaded image.
+     * @throws ImageException if the image cannot be loaded.
+     * @throws IOException in case of I/O error.
+     */
+    public PreparedImage get(String uri) throws ImageException, IOException {
+        String url = URISpecification.getURL(uri);
+        while (true) {
+            Load task;
+            synchronized (images) {
+                task = images.get(url);
+                if (task == null) {
+                    task = new Load(url);
+                    images.put(url, task);
+                }
+            }
+            //Rather than waiting behind the queued images, load it right away if it has not been started yet.
+            //This does nothing if it is being loaded or already loaded.
+            task.run();
+
+            try {
+                return task.get();
+            } catch (CancellationException ex) {
+                //Evicted before being loaded, let's try again.
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            } catch (ExecutionException ex) {
+                //Let's not cache failures, the resource might show up later.
+                synchronized (images) {
+                    images.remove(url, task);
+                }
+                Throwable cause = ex.getCause();
+                if (cause instanceof ImageException)
+                    throw (ImageException) cause;
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Get the given Graphics2D image rasterised at the given size and
+     * resolution, reusing previous rasterisations. The resolution is
+     * remembered, so that the Graphics2D images of the following pages can be
+     * rasterised in advance.
+     * 
+     * @param uri image URI.
+     * @param image image.
+     * @param width width of the image, in points.
+     * @param height height of the image, in points.
+     * @param resolutionX horizontal resolution, in pixels per point.
+     * @param resolutionY vertical resolution, in pixels per point.
+     * @return rasterised image, or null if it is empty.
+     */
+    public ImageData getRaster(String uri, ImageGraphics2D image, float width, float height, float resolutionX,
+            float resolutionY) {
+        resolution = new float[] { resolutionX, resolutionY };
+        int w = (int) Math.ceil(width * resolutionX);
+        int h = (int) Math.ceil(height * resolutionY);
+        int max = Math.max(w, h);
+        if (max > MAX_RASTER_SIZE) {
+            w = (int) Math.ceil(w * (double) MAX_RASTER_SIZE / max);
+            h = (int) Math.ceil(h * (double) MAX_RASTER_SIZE / max);
+        }
+        if (w <= 0 || h <= 0)
+            return null;
+
+        String key = URISpecification.getURL(uri) + " " + w + "x" + h; //$NON-NLS-1$ //$NON-NLS-2$
+        ImageData data = rasters.get(key);
+        if (data == null) {
+            BufferedImage buffer = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2d = buffer.createGraphics();
+            try {
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                //The same image may be rasterised by several threads concurrently.
+                synchronized (image) {
+                    image.getGraphics2DImagePainter().paint(g2d, new Rectangle2D.Double(0, 0, w, h));
+                }
+            } finally {
+                g2d.dispose();
+            }
+            data = Convert.toImageData(buffer);
+            rasters.put(key, data);
+        }
+        return data;
+    }
+
+    private PreparedImage load(String url) throws ImageException, IOException {
+        ImageManager manager = userAgent.getImageManager();
+        ImageSessionContext sessionContext = userAgent.getImageSessionContext();
+
+        PreparedImage ans = new PreparedImage();
+        ans.info = manager.getImageInfo(url, sessionContext);
+        Map hints = ImageUtil.getDefaultHints(sessionContext);
+        ans.image = manager.getImage(ans.info, flavors, hints, sessionContext);
+        if (ans.image instanceof ImageRendered) {
+            ans.data = Convert.toImageData(((ImageRendered) ans.image).getRenderedImage());
+        }
+        return ans;
+    }
+
+    //Rough memory used by a loaded image: its converted data and, for rendered images, their decoded pixels.
+    private static long sizeOf(PreparedImage image) {
+        long ans = image.data == null ? 0 : ImageDataCache.sizeOf(image.data);
+        if (image.image instanceof ImageRendered) {
+            ImageSize size = image.info.getSize();
+            ans += (long) size.getWidthPx() * size.getHeightPx() * 4;
+        }
+        return ans;
+    }
+
+    //Account for a newly loaded image, evicting the least recently used images (loaded or not) if needed.
+    private void loaded(Load task) {
+        long size;
+        try {
+            size = sizeOf(task.get());
+        } catch (InterruptedException | ExecutionException ex) {
+            //Failures are not kept.
+            return;
+        }
+        synchronized (images) {
+            if (images.get(task.url) != task)
+                return;
+            task.size = size;
+            bytes += size;
+            Iterator<Load> it = images.values().iterator();
+            while (bytes > MAX_IMAGE_BYTES && it.hasNext()) {
+                Load eldest = it.next();
+                bytes -= eldest.size;
+                eldest.cancel(false);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget about all loaded images.
+     */
+    public void clear() {
+        synchronized (images) {
+            for (Load task : images.values()) {
+                task.cancel(false);
+            }
+            images.clear();
+            bytes = 0;
+        }
+        rasters.clear();
+    }
+
+    /**
+     * Forget about all loaded images and stop the loading threads. Images can
+     * still be loaded with {@link #get(String)} afterwards, in the calling
+     * thread, but no longer be prefetched.
+     */
+    public void dispose() {
+        executor.shutdownNow();
+        clear();
+    }
+}
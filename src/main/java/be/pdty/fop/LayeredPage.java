@@ -0,0 +1,221 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import java.util.Arrays;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.graphics.Device;
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.RGBA;
+import org.eclipse.swt.graphics.Transform;
+
+/**
+ * A page drawn as two layers: a base layer holding the page itself, rendered
+ * once per zoom level into a cached bitmap, and a lightweight overlay of
+ * rectangles and outlines (search results, selection, hover...) drawn on top
+ * of it. Changing the overlay therefore only costs the overlay, not a new
+ * rendering of the page.
+ *
+ * Overlay items are expressed in page coordinates (points, origin at the
+ * top-left corner of the page), as returned by {@link PageIndex} and
+ * {@link TextIndex}.
+ *
+ * This class is meant to be used from the device thread only.
+ */
+public class LayeredPage {
+    private static final int FILL = 0;
+    private static final int OUTLINE = 1;
+
+    private Device device;
+    private Printable page;
+    private PageFormat format;
+
+    private Image base;
+    private float baseZoom;
+
+    private int count;
+    private byte[] kinds;
+    private float[] bounds;
+    private RGBA[] colors;
+    private float[] widths;
+
+    /**
+     * Create a new LayeredPage.
+     * 
+     * @param targetDevice device on which the base layer is created.
+     * @param basePage page to draw in the base layer.
+     * @param pageFormat format of the page.
+     */
+    public LayeredPage(Device targetDevice, Printable basePage, PageFormat pageFormat) {
+        device = targetDevice;
+        page = basePage;
+        format = pageFormat;
+        kinds = new byte[8];
+        bounds = new float[32];
+        colors = new RGBA[8];
+        widths = new float[8];
+    }
+
+    private void add(int kind, float x, float y, float w, float h, RGBA color, float width) {
+        if (count == kinds.length) {
+            kinds = Arrays.copyOf(kinds, count * 2);
+            bounds = Arrays.copyOf(bounds, count * 8);
+            colors = Arrays.copyOf(colors, count * 2);
+            widths = Arrays.copyOf(widths, count * 2);
+        }
+        kinds[count] = (byte) kind;
+        bounds[count * 4] = x;
+        bounds[count * 4 + 1] = y;
+        bounds[count * 4 + 2] = w;
+        bounds[count * 4 + 3] = h;
+        colors[count] = color;
+        widths[count] = width;
+        count++;
+    }
+
+    /**
+     * Add a filled rectangle to the overlay, typically a translucent
+     * highlight.
+     * 
+     * @param x x, in page coordinates.
+     * @param y y.
+     * @param w width.
+     * @param h height.
+     * @param color fill color, alpha included.
+     */
+    public void addFill(float x, float y, float w, float h, RGBA color) {
+        add(FILL, x, y, w, h, color, 0);
+    }
+
+    /**
+     * Add a rectangle outline to the overlay.
+     * 
+     * @param x x, in page coordinates.
+     * @param y y.
+     * @param w width.
+     * @param h height.
+     * @param color line color, alpha included.
+     * @param lineWidth line width, in device pixels.
+     */
+    public void addOutline(float x, float y, float w, float h, RGBA color, float lineWidth) {
+        add(OUTLINE, x, y, w, h, color, lineWidth);
+    }
+
+    /**
+     * Remove all the overlay items.
+     */
+    public void clearOverlay() {
+        Arrays.fill(colors, 0, count, null);
+        count = 0;
+    }
+
+    /**
+     * Discard the base layer, for example if the page content changed.
+     */
+    public void invalidate() {
+        if (base != null) {
+            base.dispose();
+            base = null;
+        }
+    }
+
+    //Get the base layer at the given zoom, rendering it if necessary.
+    private Image getBase(float zoom) {
+        if (base != null && baseZoom == zoom)
+            return base;
+        invalidate();
+
+        int width = (int) Math.ceil(format.getWidth() * zoom * device.getDPI().x / 72.0);
+        int height = (int) Math.ceil(format.getHeight() * zoom * device.getDPI().y / 72.0);
+        Image ans = new Image(device, Math.max(1, width), Math.max(1, height));
+        GC gc = new GC(ans);
+        Transform transform = new Transform(device);
+        try {
+            gc.setBackground(device.getSystemColor(SWT.COLOR_WHITE));
+            gc.fillRectangle(0, 0, width, height);
+            transform.scale(zoom, zoom);
+            gc.setTransform(transform);
+            page.print(gc);
+        } finally {
+            transform.dispose();
+            gc.dispose();
+        }
+        base = ans;
+        baseZoom = zoom;
+        return ans;
+    }
+
+    /**
+     * Paint the page and its overlay. The base layer is only rendered if the
+     * zoom changed since the last call.
+     * 
+     * @param gc target GC.
+     * @param x x of the top-left corner of the page, in device pixels.
+     * @param y y of the top-left corner of the page, in device pixels.
+     * @param zoom zoom factor, 1 being the device resolution.
+     */
+    public void paint(GC gc, int x, int y, float zoom) {
+        gc.drawImage(getBase(zoom), x, y);
+        if (count == 0)
+            return;
+
+        float sx = zoom * device.getDPI().x / 72.0f;
+        float sy = zoom * device.getDPI().y / 72.0f;
+        int oldAlpha = gc.getAlpha();
+        Color oldForeground = gc.getForeground();
+        Color oldBackground = gc.getBackground();
+        int oldLineWidth = gc.getLineWidth();
+        try {
+            for (int i = 0; i < count; i++) {
+                int rx = x + Math.round(bounds[i * 4] * sx);
+                int ry = y + Math.round(bounds[i * 4 + 1] * sy);
+                int rw = Math.round(bounds[i * 4 + 2] * sx);
+                int rh = Math.round(bounds[i * 4 + 3] * sy);
+                RGBA rgba = colors[i];
+                Color color = new Color(device, rgba.rgb);
+                try {
+                    gc.setAlpha(rgba.alpha);
+                    if (kinds[i] == FILL) {
+                        gc.setBackground(color);
+                        gc.fillRectangle(rx, ry, rw, rh);
+                    } else {
+                        gc.setForeground(color);
+                        gc.setLineWidth(Math.max(1, Math.round(widths[i])));
+                        gc.drawRectangle(rx, ry, rw, rh);
+                    }
+                } finally {
+                    color.dispose();
+                }
+            }
+        } finally {
+            gc.setAlpha(oldAlpha);
+            gc.setForeground(oldForeground);
+            gc.setBackground(oldBackground);
+            gc.setLineWidth(oldLineWidth);
+        }
+    }
+
+    /**
+     * Dispose the base layer.
+     */
+    public void dispose() {
+        invalidate();
+    }
+}
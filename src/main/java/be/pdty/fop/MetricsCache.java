@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.eclipse.swt.graphics.Device;
+
+/**
+ * Device-scoped cache of font metrics and character advance widths, keyed by
+ * Base14 font name and size. Measuring text through SWT requires a native
+ * round-trip (and, for the font metrics, a font reset to work around SWT bug
+ * 319125), so the GCWrapper asks this cache first and only measures what it
+ * does not know yet.
+ *
+ * Values are expressed in the same unit as the one returned by
+ * {@link GCWrapper#getFontMetrics()} and
+ * {@link GCWrapper#stringExtentWidth(String)}. They do not depend on the GC
+ * transform and can therefore be shared by all the GCs of a given device.
+ *
+ * Instances are not thread-safe and are meant to be used from the device
+ * thread only.
+ */
+public class MetricsCache {
+    //Advances of characters outside of the Latin-1 range are kept in a bounded LRU.
+    private static final int DENSE_RANGE = 256;
+    private static final int MAX_SPARSE_ADVANCES = 1024;
+
+    //Scripts whose characters are drawn with their own advance, without any contextual shaping. Hangul is only
+    //additive for precomposed syllables, its conjoining jamos are shaped.
+    private static final Set<Character.UnicodeScript> ADDITIVE_SCRIPTS = EnumSet.of(Character.UnicodeScript.COMMON,
+            Character.UnicodeScript.LATIN, Character.UnicodeScript.GREEK, Character.UnicodeScript.CYRILLIC,
+            Character.UnicodeScript.ARMENIAN, Character.UnicodeScript.GEORGIAN, Character.UnicodeScript.HAN,
+            Character.UnicodeScript.HIRAGANA, Character.UnicodeScript.KATAKANA, Character.UnicodeScript.BOPOMOFO);
+    private static final char FIRST_HANGUL_SYLLABLE = '\uAC00';
+    private static final char LAST_HANGUL_SYLLABLE = '\uD7A3';
+
+    private static final Map<Device, MetricsCache> caches = new WeakHashMap<>();
+
+    /**
+     * Per font and size cached information.
+     */
+    public static class Entry {
+        private GCWrapper.Metrics metrics;
+        private float[] dense;
+        private Map<Character, Float> sparse;
+
+        private Entry() {
+            dense = new float[DENSE_RANGE];
+            Arrays.fill(dense, Float.NaN);
+            sparse = new LinkedHashMap<Character, Float>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Character, Float> eldest) {
+                    return size() > MAX_SPARSE_ADVANCES;
+                }
+            };
+        }
+
+        /**
+         * Get the cached font metrics.
+         *
+         * @return font metrics, or null if not known yet.
+         */
+        public GCWrapper.Metrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Set the font metrics.
+         *
+         * @param m font metrics.
+         */
+        public void setMetrics(GCWrapper.Metrics m) {
+            metrics = m;
+        }
+
+        /**
+         * Get the cached advance width of the given character.
+         *
+         * @param c character.
+         * @return advance width, or NaN if not known yet.
+         */
+        public float getAdvance(char c) {
+            if (c < DENSE_RANGE)
+                return dense[c];
+            Float ans = sparse.get(Character.valueOf(c));
+            return ans == null ? Float.NaN : ans.floatValue();
+        }
+
+        /**
+         * Set the advance width of the given character.
+         *
+         * @param c character.
+         * @param advance advance width.
+         */
+        public void setAdvance(char c, float advance) {
+            if (c < DENSE_RANGE) {
+                dense[c] = advance;
+            } else {
+                sparse.put(Character.valueOf(c), Float.valueOf(advance));
+            }
+        }
+    }
+
+    private Map<String, Entry> entries;
+
+    private MetricsCache() {
+        entries = new HashMap<>();
+    }
+
+    /**
+     * Get the cache bound to the given device.
+     *
+     * @param device device.
+     * @return metrics cache.
+     */
+    public static MetricsCache get(Device device) {
+        synchronized (caches) {
+            MetricsCache ans = caches.get(device);
+            if (ans == null) {
+                ans = new MetricsCache();
+                caches.put(device, ans);
+            }
+            return ans;
+        }
+    }
+
+    /**
+     * Get the entry for the given Base14 font name and size, creating it if
+     * necessary.
+     *
+     * @param name Base14 font name.
+     * @param size font size.
+     * @return cache entry.
+     */
+    public Entry getEntry(String name, int size) {
+        String key = name + ":" + size; //$NON-NLS-1$
+        Entry ans = entries.get(key);
+        if (ans == null) {
+            ans = new Entry();
+            entries.put(key, ans);
+        }
+        return ans;
+    }
+
+    /**
+     * Check whether the width of the given string can be computed by summing
+     * individual character advances. This is only the case for scripts that
+     * are not shaped (e.g. Latin, Greek, Cyrillic or CJK), and as long as
+     * there is no combining mark, joiner or other format character. The native
+     * measurement must be used for everything else, as well as for surrogate
+     * pairs. Note that kerning is not taken into account by the sum either.
+     *
+     * @param s string.
+     * @return true if the advances can be summed, false otherwise.
+     */
+    public static boolean isAdditive(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            //Latin-1 and Latin Extended, up to the combining diacritical marks.
+            if (c < '\u0300')
+                continue;
+            if (Character.isSurrogate(c))
+                return false;
+            switch (Character.getType(c)) {
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+            case Character.FORMAT:
+                return false;
+            default:
+                break;
+            }
+            Character.UnicodeScript script = Character.UnicodeScript.of(c);
+            if (script == Character.UnicodeScript.HANGUL) {
+                if (c < FIRST_HANGUL_SYLLABLE || c > LAST_HANGUL_SYLLABLE)
+                    return false;
+            } else if (!ADDITIVE_SCRIPTS.contains(script)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
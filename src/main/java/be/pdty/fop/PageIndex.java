@@ -0,0 +1,308 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index of the content of a page, used for hit-testing (links,
+ * tooltips, text selection...). Items are axis-aligned rectangles in page
+ * coordinates (points, origin at the top-left corner of the page), each with a
+ * kind and an optional payload (text, image URI, link target).
+ *
+ * Items are stored in primitive arrays and bucketed into a uniform grid, so
+ * that point and rectangle queries only look at the items of the cells they
+ * touch. The grid is built lazily on the first query following an addition.
+ *
+ * This class is not thread-safe. Once fully built (see {@link #build()}), it
+ * can however be queried concurrently.
+ */
+public class PageIndex {
+    /**
+     * Text run. The payload is the text.
+     */
+    public static final int TEXT = 1;
+
+    /**
+     * Image. The payload is the image URI.
+     */
+    public static final int IMAGE = 2;
+
+    /**
+     * Link. The payload is the FOP link trait, either a
+     * {@link org.apache.fop.area.Trait.InternalLink} or a
+     * {@link org.apache.fop.area.Trait.ExternalLink}.
+     */
+    public static final int LINK = 4;
+
+    /**
+     * Block area, including its borders and padding. There is no payload.
+     */
+    public static final int BLOCK = 8;
+
+    /**
+     * All kinds.
+     */
+    public static final int ALL = TEXT | IMAGE | LINK | BLOCK;
+
+    private static final float CELL_SIZE = 32;
+    private static final int MAX_CELLS = 128;
+
+    private int count;
+    private float[] bounds;
+    private byte[] kinds;
+    private Object[] payloads;
+
+    private boolean built;
+    private float originX;
+    private float originY;
+    private float cellWidth;
+    private float cellHeight;
+    private int columns;
+    private int rows;
+    private int[] cellStart;
+    private int[] cellItems;
+
+    /**
+     * Create a new, empty, PageIndex.
+     */
+    public PageIndex() {
+        bounds = new float[64];
+        kinds = new byte[16];
+        payloads = new Object[16];
+        built = true;
+    }
+
+    /**
+     * Add an item.
+     * 
+     * @param kind item kind.
+     * @param x x.
+     * @param y y.
+     * @param w width.
+     * @param h height.
+     * @param payload payload, or null.
+     */
+    public void add(int kind, float x, float y, float w, float h, Object payload) {
+        if (count == kinds.length) {
+            bounds = Arrays.copyOf(bounds, count * 8);
+            kinds = Arrays.copyOf(kinds, count * 2);
+            payloads = Arrays.copyOf(payloads, count * 2);
+        }
+        bounds[count * 4] = Math.min(x, x + w);
+        bounds[count * 4 + 1] = Math.min(y, y + h);
+        bounds[count * 4 + 2] = Math.max(x, x + w);
+        bounds[count * 4 + 3] = Math.max(y, y + h);
+        kinds[count] = (byte) kind;
+        payloads[count] = payload;
+        count++;
+        built = false;
+    }
+
+    /**
+     * Get the number of items.
+     * 
+     * @return number of items.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Get the kind of the given item.
+     * 
+     * @param item item index.
+     * @return item kind.
+     */
+    public int getKind(int item) {
+        return kinds[item];
+    }
+
+    /**
+     * Get the payload of the given item.
+     * 
+     * @param item item index.
+     * @return payload, or null.
+     */
+    public Object getPayload(int item) {
+        return payloads[item];
+    }
+
+    /**
+     * Get the x of the given item.
+     * 
+     * @param item item index.
+     * @return x.
+     */
+    public float getX(int item) {
+        return bounds[item * 4];
+    }
+
+    /**
+     * Get the y of the given item.
+     * 
+     * @param item item index.
+     * @return y.
+     */
+    public float getY(int item) {
+        return bounds[item * 4 + 1];
+    }
+
+    /**
+     * Get the width of the given item.
+     * 
+     * @param item item index.
+     * @return width.
+     */
+    public float getWidth(int item) {
+        return bounds[item * 4 + 2] - bounds[item * 4];
+    }
+
+    /**
+     * Get the height of the given item.
+     * 
+     * @param item item index.
+     * @return height.
+     */
+    public float getHeight(int item) {
+        return bounds[item * 4 + 3] - bounds[item * 4 + 1];
+    }
+
+    /**
+     * Build the grid. This is done automatically by the queries, but doing it
+     * upfront allows concurrent queries.
+     */
+    public void build() {
+        if (built)
+            return;
+
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, bounds[i * 4]);
+            minY = Math.min(minY, bounds[i * 4 + 1]);
+            maxX = Math.max(maxX, bounds[i * 4 + 2]);
+            maxY = Math.max(maxY, bounds[i * 4 + 3]);
+        }
+        originX = minX;
+        originY = minY;
+        columns = Math.max(1, Math.min(MAX_CELLS, (int) Math.ceil((maxX - minX) / CELL_SIZE)));
+        rows = Math.max(1, Math.min(MAX_CELLS, (int) Math.ceil((maxY - minY) / CELL_SIZE)));
+        cellWidth = Math.max((maxX - minX) / columns, Float.MIN_NORMAL);
+        cellHeight = Math.max((maxY - minY) / rows, Float.MIN_NORMAL);
+
+        //Counting sort of the items into the cells they overlap.
+        cellStart = new int[columns * rows + 1];
+        for (int pass = 0; pass < 2; pass++) {
+            int[] fill = pass == 0 ? null : Arrays.copyOf(cellStart, cellStart.length);
+            for (int i = 0; i < count; i++) {
+                int c0 = column(bounds[i * 4]);
+                int r0 = row(bounds[i * 4 + 1]);
+                int c1 = column(bounds[i * 4 + 2]);
+                int r1 = row(bounds[i * 4 + 3]);
+                for (int r = r0; r <= r1; r++) {
+                    for (int c = c0; c <= c1; c++) {
+                        int cell = r * columns + c;
+                        if (pass == 0) {
+                            cellStart[cell + 1]++;
+                        } else {
+                            cellItems[fill[cell]++] = i;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int cell = 0; cell < columns * rows; cell++) {
+                    cellStart[cell + 1] += cellStart[cell];
+                }
+                cellItems = new int[cellStart[columns * rows]];
+            }
+        }
+        built = true;
+    }
+
+    private int column(float x) {
+        return Math.max(0, Math.min(columns - 1, (int) ((x - originX) / cellWidth)));
+    }
+
+    private int row(float y) {
+        return Math.max(0, Math.min(rows - 1, (int) ((y - originY) / cellHeight)));
+    }
+
+    /**
+     * Find the items containing the given point.
+     * 
+     * @param x x.
+     * @param y y.
+     * @param kindMask kinds of the items to look for (e.g.
+     *            <code>TEXT | LINK</code>).
+     * @return matching items, in drawing order (i.e. the topmost one last).
+     */
+    public int[] query(float x, float y, int kindMask) {
+        return query(x, y, 0, 0, kindMask);
+    }
+
+    /**
+     * Find the items intersecting the given rectangle.
+     * 
+     * @param x x.
+     * @param y y.
+     * @param w width.
+     * @param h height.
+     * @param kindMask kinds of the items to look for (e.g.
+     *            <code>TEXT | LINK</code>).
+     * @return matching items, in drawing order (i.e. the topmost one last).
+     */
+    public int[] query(float x, float y, float w, float h, int kindMask) {
+        build();
+        float maxX = x + w;
+        float maxY = y + h;
+        if (count == 0 || maxX < originX || maxY < originY)
+            return new int[0];
+
+        int[] ans = new int[16];
+        int found = 0;
+        int c0 = column(x);
+        int r0 = row(y);
+        int c1 = column(maxX);
+        int r1 = row(maxY);
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int cell = r * columns + c;
+                for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                    int i = cellItems[k];
+                    if ((kinds[i] & kindMask) == 0)
+                        continue;
+                    if (bounds[i * 4] > maxX || bounds[i * 4 + 1] > maxY || bounds[i * 4 + 2] < x
+                            || bounds[i * 4 + 3] < y)
+                        continue;
+                    //Items spanning several cells are reported once, from their first common cell.
+                    if (c != Math.max(c0, column(bounds[i * 4])) || r != Math.max(r0, row(bounds[i * 4 + 1])))
+                        continue;
+                    if (found == ans.length)
+                        ans = Arrays.copyOf(ans, found * 2);
+                    ans[found++] = i;
+                }
+            }
+        }
+        ans = Arrays.copyOf(ans, found);
+        Arrays.sort(ans);
+        return ans;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Device;
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.Pattern;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Device-scoped cache of the SWT patterns used to fill repeated background
+ * images. Each pattern tiles an image scaled to a given size in pixels, so
+ * that a repeated background is filled in a single operation instead of one
+ * image draw (and one native image creation) per tile, and so that the scaled
+ * tile is shared by all the pages using it.
+ *
+ * Images are identified by their ImageData instance, which is shared by all
+ * the pages thanks to the image prefetcher. The least recently used patterns
+ * are disposed when the cache is full, and all of them are disposed with the
+ * display. Caches of other devices (e.g. printers) should be released with
+ * {@link #dispose(Device)}; they are otherwise dropped the next time a cache
+ * is requested after their device got disposed.
+ *
+ * Instances are not thread-safe and are meant to be used from the device
+ * thread only.
+ */
+public class PatternCache {
+    private static final int MAX_PATTERNS = 32;
+
+    private static final Map<Device, PatternCache> caches = new WeakHashMap<>();
+
+    private static class PatternKey {
+        private ImageData data;
+        private int width;
+        private int height;
+
+        public PatternKey(ImageData d, int w, int h) {
+            data = d;
+            width = w;
+            height = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(data) * 31 + width) * 31 + height;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PatternKey))
+                return false;
+            PatternKey o = (PatternKey) obj;
+            return data == o.data && width == o.width && height == o.height;
+        }
+    }
+
+    private static class CachedPattern {
+        private Image image;
+        private Pattern pattern;
+
+        public void dispose() {
+            pattern.dispose();
+            image.dispose();
+        }
+    }
+
+    private Map<PatternKey, CachedPattern> entries;
+
+    private PatternCache() {
+        entries = new LinkedHashMap<PatternKey, CachedPattern>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PatternKey, CachedPattern> eldest) {
+                if (size() > MAX_PATTERNS) {
+                    eldest.getValue().dispose();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the cache bound to the given device.
+     *
+     * @param device device.
+     * @return pattern cache.
+     */
+    public static PatternCache get(Device device) {
+        synchronized (caches) {
+            //The cached images hold on to their device, so the weak keys alone don't release anything.
+            Iterator<Map.Entry<Device, PatternCache>> it = caches.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Device, PatternCache> entry = it.next();
+                if (entry.getKey().isDisposed()) {
+                    entry.getValue().clear();
+                    it.remove();
+                }
+            }
+
+            PatternCache ans = caches.get(device);
+            if (ans == null) {
+                ans = new PatternCache();
+                caches.put(device, ans);
+                if (device instanceof Display)
+                    ((Display) device).disposeExec(() -> dispose(device));
+            }
+            return ans;
+        }
+    }
+
+    /**
+     * Dispose the cache bound to the given device, if any.
+     *
+     * @param device device.
+     */
+    public static void dispose(Device device) {
+        PatternCache cache;
+        synchronized (caches) {
+            cache = caches.remove(device);
+        }
+        if (cache != null)
+            cache.clear();
+    }
+
+    /**
+     * Get the pattern tiling the given image scaled to the given size,
+     * creating it if necessary. The returned pattern belongs to the cache and
+     * must not be disposed; it remains valid until the next call to this
+     * method.
+     *
+     * @param device device of this cache.
+     * @param data image.
+     * @param width tile width, in pixels.
+     * @param height tile height, in pixels.
+     * @return pattern.
+     */
+    public Pattern getPattern(Device device, ImageData data, int width, int height) {
+        PatternKey key = new PatternKey(data, width, height);
+        CachedPattern ans = entries.get(key);
+        if (ans == null || ans.pattern.isDisposed()) {
+            ans = new CachedPattern();
+            ans.image = createTile(device, data, width, height);
+            ans.pattern = new Pattern(device, ans.image);
+            entries.put(key, ans);
+        }
+        return ans.pattern;
+    }
+
+    //Scale the image to the tile size. Opaque images are smoothly scaled, transparent ones are scaled
+    //through their ImageData so that they keep their transparency.
+    private static Image createTile(Device device, ImageData data, int width, int height) {
+        if (data.width == width && data.height == height)
+            return new Image(device, data);
+        if (data.alphaData != null || data.alpha != -1 || data.transparentPixel != -1)
+            return new Image(device, data.scaledTo(width, height));
+
+        Image source = new Image(device, data);
+        Image ans = new Image(device, width, height);
+        GC gc = new GC(ans);
+        try {
+            gc.setInterpolation(SWT.HIGH);
+            gc.drawImage(source, 0, 0, data.width, data.height, 0, 0, width, height);
+        } finally {
+            gc.dispose();
+            source.dispose();
+        }
+        return ans;
+    }
+
+    /**
+     * Dispose all cached patterns.
+     */
+    public void clear() {
+        for (CachedPattern entry : entries.values()) {
+            entry.dispose();
+        }
+        entries.clear();
+    }
+}
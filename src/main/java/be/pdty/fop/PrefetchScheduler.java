@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A Pageable that prepares the pages a viewer is likely to request next. Each
+ * request to {@link #getPrintable(int)} is used to guess the scrolling
+ * direction and step (line scrolling, page-down with several pages per
+ * screen...) and the next pages are recorded in the background into display
+ * lists, using {@link SWTRenderer#preparePage(int, Base14FontProvider, ExecutorService)}.
+ * Pages that were not prepared in time are simply rendered directly.
+ *
+ * Pending preparations that fall out of the predicted window (typically after
+ * a jump) are cancelled, and prepared pages are evicted, farthest first, as
+ * soon as their estimated size exceeds the memory budget.
+ *
+ * This class is meant to be used from the device thread only.
+ */
+public class PrefetchScheduler implements Pageable {
+    private static final int HISTORY = 4;
+
+    private SWTRenderer renderer;
+    private Base14FontProvider fonts;
+    private ExecutorService executor;
+    private long memoryBudget;
+    private int ahead;
+
+    private List<Integer> history;
+    private Map<Integer, Future<DisplayList>> pages;
+
+    /**
+     * Create a new PrefetchScheduler.
+     *
+     * @param swtRenderer renderer holding the pages.
+     * @param fontProvider font provider used to record the pages. It must remain
+     *            undisposed as long as this scheduler is used.
+     * @param executorService executor preparing the pages.
+     * @param budget memory budget for the prepared pages, in bytes.
+     * @param pagesAhead number of pages to prepare ahead of the last requested
+     *            one.
+     */
+    public PrefetchScheduler(SWTRenderer swtRenderer, Base14FontProvider fontProvider,
+            ExecutorService executorService, long budget, int pagesAhead) {
+        renderer = swtRenderer;
+        fonts = fontProvider;
+        executor = executorService;
+        memoryBudget = budget;
+        ahead = pagesAhead;
+        history = new ArrayList<>();
+        pages = new HashMap<>();
+    }
+
+    @Override
+    public int getNumberOfPages() {
+        return renderer.getNumberOfPages();
+    }
+
+    @Override
+    public PageFormat getPageFormat(int pageIndex) {
+        return renderer.getPageFormat(pageIndex);
+    }
+
+    @Override
+    public Printable getPrintable(int pageIndex) {
+        Future<DisplayList> future = pages.get(pageIndex);
+
+        history.add(pageIndex);
+        if (history.size() > HISTORY)
+            history.remove(0);
+        schedule(predict(pageIndex), pageIndex);
+
+        if (future != null && future.isDone() && !future.isCancelled()) {
+            try {
+                return future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                //We'll render it directly then.
+                pages.remove(pageIndex);
+            }
+        }
+        return renderer.getPrintable(pageIndex);
+    }
+
+    /**
+     * Cancel all pending preparations and forget about all prepared pages.
+     */
+    public void cancel() {
+        for (Future<DisplayList> future : pages.values()) {
+            future.cancel(true);
+        }
+        pages.clear();
+        history.clear();
+    }
+
+    //Guess the next pages from the recent requests.
+    private Set<Integer> predict(int current) {
+        int step = 0;
+        int size = history.size();
+        if (size >= 2) {
+            step = history.get(size - 1) - history.get(size - 2);
+            //A jump: we don't know where the user is heading to.
+            if (Math.abs(step) > ahead + 1)
+                step = 0;
+        }
+
+        Set<Integer> ans = new LinkedHashSet<>();
+        if (step == 0) {
+            for (int i = 1; i <= ahead; i++) {
+                ans.add(current + i);
+                ans.add(current - i);
+            }
+        } else {
+            for (int i = 1; i <= ahead; i++) {
+                ans.add(current + i * step);
+            }
+            //Keep the page we just left around in case the user comes back.
+            ans.add(current - Integer.signum(step));
+        }
+
+        int count = getNumberOfPages();
+        ans.removeIf(i -> i < 0 || i >= count);
+        return ans;
+    }
+
+    private void schedule(Set<Integer> wanted, int current) {
+        //Cancel what is not wanted anymore.
+        Iterator<Map.Entry<Integer, Future<DisplayList>>> it = pages.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Future<DisplayList>> entry = it.next();
+            int index = entry.getKey();
+            if (index != current && !wanted.contains(index) && !entry.getValue().isDone()) {
+                entry.getValue().cancel(true);
+                it.remove();
+            }
+        }
+
+        for (Integer index : wanted) {
+            if (!pages.containsKey(index)) {
+                pages.put(index, renderer.preparePage(index, fonts, executor));
+            }
+        }
+
+        evict(current);
+    }
+
+    //Drop prepared pages, farthest from the current one first, until we fit in the budget.
+    private void evict(int current) {
+        long total = 0;
+        List<Integer> done = new ArrayList<>();
+        for (Map.Entry<Integer, Future<DisplayList>> entry : pages.entrySet()) {
+            Future<DisplayList> future = entry.getValue();
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    total += future.get().estimateSize();
+                    done.add(entry.getKey());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException ex) {
+                    //Will be dropped below.
+                    done.add(entry.getKey());
+                }
+            }
+        }
+
+        done.sort((a, b) -> Integer.compare(Math.abs(b - current), Math.abs(a - current)));
+        for (Integer index : done) {
+            if (total <= memoryBudget)
+                break;
+            try {
+                total -= pages.remove(index).get().estimateSize();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ex) {
+                //Nothing to account for.
+            }
+        }
+    }
+}
@@ -31,4 +31,21 @@ public interface Printable {
      * @param gc target GC.
      */
     public void print(GC gc);
+
+    /**
+     * Render the printable to the given GC, within the given budget. If the
+     * budget gets exhausted, the rendering stops and the page is left
+     * partially rendered. The default implementation only checks the budget
+     * before rendering the whole page.
+     * 
+     * @param gc target GC.
+     * @param budget rendering budget.
+     * @return rendering status.
+     */
+    public default RenderStatus print(GC gc, RenderBudget budget) {
+        RenderStatus ans = budget.check();
+        if (ans == RenderStatus.COMPLETE)
+            print(gc);
+        return ans;
+    }
 }
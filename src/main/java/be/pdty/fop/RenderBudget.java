@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package be.pdty.fop;
+
+/**
+ * Limits a rendering in time. A budget can be cancelled from any thread, and
+ * may have a deadline. The rendering checks the budget regularly and stops as
+ * soon as it is exhausted, leaving the page partially rendered.
+ */
+public class RenderBudget {
+    private volatile boolean cancelled;
+    private boolean limited;
+    private long deadline;
+
+    /**
+     * Create a new budget without deadline, that can only be cancelled.
+     */
+    public RenderBudget() {
+        limited = false;
+    }
+
+    /**
+     * Create a new budget with a deadline.
+     * 
+     * @param timeoutMillis time allowed from now, in milliseconds.
+     */
+    public RenderBudget(long timeoutMillis) {
+        limited = true;
+        deadline = System.nanoTime() + timeoutMillis * 1000000L;
+    }
+
+    /**
+     * Cancel the rendering. This method can be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Check whether the budget was cancelled.
+     * 
+     * @return true if cancelled, false otherwise.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Check the budget.
+     * 
+     * @return {@link RenderStatus#COMPLETE} if the rendering can go on,
+     *         {@link RenderStatus#CANCELLED} or {@link RenderStatus#TIMED_OUT}
+     *         otherwise.
+     */
+    public RenderStatus check() {
+        if (cancelled)
+            return RenderStatus.CANCELLED;
+        if (limited && System.nanoTime() - deadline > 0)
+            return RenderStatus.TIMED_OUT;
+        return RenderStatus.COMPLETE;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package be.pdty.fop;
+
+/**
+ * Rendering passes used for progressive rendering, in the order in which they
+ * are rendered. See
+ * {@link DisplayList#print(org.eclipse.swt.graphics.GC, DisplayList.PassListener)}.
+ */
+public enum RenderPass {
+    /**
+     * Backgrounds (including background images) and borders.
+     */
+    BACKGROUND,
+
+    /**
+     * Text.
+     */
+    TEXT,
+
+    /**
+     * Text decorations and images.
+     */
+    DECORATION;
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+/**
+ * Rendering quality profile.
+ */
+public enum RenderQuality {
+    /**
+     * Fast rendering for thumbnails and live scrolling: no antialiasing,
+     * nearest-neighbour image scaling, straight underlines, placeholders for
+     * small images and no groove/ridge shading.
+     */
+    DRAFT,
+
+    /**
+     * Default rendering. The underline method can be selected with the
+     * FOP_SWT_RENDER_UNDERLINE_METHOD environment variable.
+     */
+    NORMAL,
+
+    /**
+     * Same as {@link #NORMAL}, but always using the highest quality underline
+     * method regardless of the environment.
+     */
+    PRINT;
+}
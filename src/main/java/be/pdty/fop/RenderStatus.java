@@ -0,0 +1,36 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package be.pdty.fop;
+
+/**
+ * Outcome of a budgeted rendering.
+ */
+public enum RenderStatus {
+    /**
+     * Everything was rendered.
+     */
+    COMPLETE,
+
+    /**
+     * The rendering was cancelled, only part of the page was rendered.
+     */
+    CANCELLED,
+
+    /**
+     * The deadline was reached, only part of the page was rendered.
+     */
+    TIMED_OUT;
+}
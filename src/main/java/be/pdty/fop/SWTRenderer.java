@@ -16,26 +16,31 @@
 
 package be.pdty.fop;
 
-import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
 import java.awt.geom.GeneralPath;
 import java.awt.geom.Rectangle2D;
-import java.awt.image.ColorModel;
-import java.awt.image.Raster;
-import java.awt.image.RenderedImage;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.fop.ResourceEventProducer;
 import org.apache.fop.apps.FOPException;
 import org.apache.fop.apps.FOUserAgent;
+import org.apache.fop.area.Block;
 import org.apache.fop.area.CTM;
 import org.apache.fop.area.LineArea;
 import org.apache.fop.area.PageViewport;
@@ -65,32 +70,79 @@ import org.apache.fop.util.ColorUtil;
 import org.apache.xmlgraphics.image.loader.ImageException;
 import org.apache.xmlgraphics.image.loader.ImageFlavor;
 import org.apache.xmlgraphics.image.loader.ImageInfo;
-import org.apache.xmlgraphics.image.loader.ImageManager;
-import org.apache.xmlgraphics.image.loader.ImageSessionContext;
+import org.apache.xmlgraphics.image.loader.ImageSize;
 import org.apache.xmlgraphics.image.loader.impl.ImageGraphics2D;
 import org.apache.xmlgraphics.image.loader.impl.ImageRendered;
 import org.apache.xmlgraphics.image.loader.impl.ImageXMLDOM;
-import org.apache.xmlgraphics.image.loader.util.ImageUtil;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.GC;
 import org.eclipse.swt.graphics.ImageData;
-import org.eclipse.swt.graphics.PaletteData;
 import org.eclipse.swt.graphics.PathData;
+import org.eclipse.swt.graphics.RGBA;
 
 /**
  * SWTRenderer. Compared to the AWTRenderer, the SWTRenderer has the following
  * limitations: - Only Base14 fonts are supported; - Fonts glyph offsets are not
- * supported; - Graphics2D images are not supported.
+ * supported; - Graphics2D images (including SVG) are rasterised.
  */
 public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageable {
-    private List<PageViewport> pageViewportList;
+    /**
+     * Listener notified as pages become available. Notifications take place on
+     * the thread running FOP, so listeners typically forward them to the
+     * device thread.
+     */
+    public interface PageListener {
+        /**
+         * Called when a new page has been laid out and can be rendered.
+         * 
+         * @param pageIndex 0-based index of the new page.
+         */
+        public void pageAvailable(int pageIndex);
+
+        /**
+         * Called when FOP is done with the document.
+         * 
+         * @param pageCount final number of pages.
+         */
+        public void renderingComplete(int pageCount);
+    }
+
+    //Pages can be added by FOP while being rendered on another thread.
+    private List<PageViewport> pageViewportList = Collections.synchronizedList(new ArrayList<>());
+    private List<PageListener> pageListeners = new CopyOnWriteArrayList<>();
+    private volatile BlockingQueue<Integer> pageQueue;
+    private volatile boolean complete;
+    private ImagePrefetcher imagePrefetcher;
+    private boolean prefetchImages;
+    private boolean indexPages;
+    private boolean cullOccluded;
+    private Map<Integer, PageIndex> pageIndices;
+    private PageIndex pageIndex;
+    private TextIndex textIndex;
+    private TextIndex.Builder textRuns;
+    private boolean background;
     private Stack<State> stateStack;
 
+    //Solid collapsed border segments and backgrounds are merged in page coordinates, using
+    //the page clipping area computed for the last transformation and clipping area.
+    private BorderMerger borders = new BorderMerger();
+    private BackgroundBatcher backgrounds;
+    private AffineTransform pageClipTransform;
+    private Area pageClipSource;
+    private PathData pageClip;
+    private Rectangle2D pageClipBounds;
+
     private GeneralPath currentPath;
     private State state;
-    private GCWrapper wrapper;
+    private DrawingContext wrapper;
     private TextOutput textOutput;
 
+    private boolean fopMetrics;
+    private boolean validateMetrics;
+    private RenderQuality quality;
+    private RenderBudget budget;
+    private RenderStatus status;
+
     /**
      * Default constructor
      * 
@@ -100,6 +152,126 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
     public SWTRenderer(FOUserAgent uAgent) {
         super(uAgent);
         userAgent.setRendererOverride(this);
+        imagePrefetcher = new ImagePrefetcher(userAgent, FLAVOURS);
+        prefetchImages = true;
+        pageIndices = Collections.synchronizedMap(new HashMap<>());
+        validateMetrics = System.getenv("FOP_SWT_RENDER_VALIDATE_METRICS") != null; //$NON-NLS-1$
+    }
+
+    //Create a renderer sharing the pages and settings of the given one, used to
+    //render pages concurrently with it.
+    private SWTRenderer(SWTRenderer parent) {
+        super(parent.userAgent);
+        fontInfo = parent.fontInfo;
+        pageViewportList = parent.pageViewportList;
+        imagePrefetcher = parent.imagePrefetcher;
+        indexPages = parent.indexPages;
+        cullOccluded = parent.cullOccluded;
+        textIndex = parent.textIndex;
+        pageIndices = parent.pageIndices;
+        fopMetrics = parent.fopMetrics;
+        validateMetrics = parent.validateMetrics;
+    }
+
+    /**
+     * Set whether text positions and extents should be taken from FOP's font
+     * metrics instead of being measured through SWT. In this mode, text layout
+     * does not need any native measurement call. Setting the
+     * FOP_SWT_RENDER_VALIDATE_METRICS environment variable will report any
+     * significant drift between FOP's metrics and the SWT extents.
+     * 
+     * @param useFopMetrics true to use FOP's font metrics, false to measure
+     *            through SWT (default).
+     */
+    public void setUseFopMetrics(boolean useFopMetrics) {
+        fopMetrics = useFopMetrics;
+    }
+
+    /**
+     * Set whether the images of each page should be loaded in the background
+     * as soon as the page is laid out, so that they are ready when the page
+     * gets rendered.
+     * 
+     * @param prefetch true to load images in the background (default), false
+     *            to load them only when rendering.
+     */
+    public void setPrefetchImages(boolean prefetch) {
+        prefetchImages = prefetch;
+    }
+
+    /**
+     * Release the resources held by this renderer: the image loading threads
+     * and the loaded images. Pages can still be rendered afterwards, but their
+     * images are no longer prefetched.
+     */
+    public void dispose() {
+        imagePrefetcher.dispose();
+    }
+
+    /**
+     * Set whether a spatial index of the content of the pages (text runs,
+     * images, links and blocks) should be built while rendering them. See
+     * {@link #getPageIndex(int)}.
+     * 
+     * @param index true to index the pages, false otherwise (default).
+     */
+    public void setIndexPages(boolean index) {
+        indexPages = index;
+    }
+
+    /**
+     * Set whether the fills and images hidden by later opaque content should
+     * be dropped from the display lists recorded by this renderer. See
+     * {@link DisplayList#cullOccluded()}.
+     * 
+     * @param cull true to drop hidden content, false otherwise (default).
+     */
+    public void setCullOccluded(boolean cull) {
+        cullOccluded = cull;
+    }
+
+    /**
+     * Set the text index collecting the text of the pages as they are
+     * rendered (or recorded). Each page is only indexed once, the first time
+     * it is completely rendered.
+     * 
+     * @param index text index, or null for none.
+     */
+    public void setTextIndex(TextIndex index) {
+        textIndex = index;
+    }
+
+    /**
+     * Get the spatial index of the content of the given page. The index is
+     * built the first time the page is completely rendered (or recorded)
+     * with indexing enabled.
+     * 
+     * @param pageIdx 0-based page index.
+     * @return page index, or null if the page was not indexed yet.
+     */
+    public PageIndex getPageIndex(int pageIdx) {
+        return pageIndices.get(pageIdx);
+    }
+
+    /**
+     * Check whether text positions and extents are taken from FOP's font
+     * metrics.
+     * 
+     * @return true if FOP's font metrics are used, false otherwise.
+     */
+    public boolean isUseFopMetrics() {
+        return fopMetrics;
+    }
+
+    //Report the difference between the FOP metrics and the SWT extent, if requested.
+    private void validateExtent(String s, float fopExtent) {
+        if (!validateMetrics)
+            return;
+        float swtExtent = wrapper.stringExtentWidth(s);
+        if (Math.abs(swtExtent - fopExtent) > 0.5f) {
+            log.info("Text metrics drift of " + (swtExtent - fopExtent) + "pt for \"" + s + "\" (FOP: " + fopExtent //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                    + "pt, SWT: " + swtExtent + "pt)"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
     }
 
     @Override
@@ -107,6 +279,46 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
         return pageViewportList.size();
     }
 
+    /**
+     * Check whether FOP is done with the document, i.e. whether the number of
+     * pages is final. Pages can be rendered as soon as they are available,
+     * while FOP is still laying out the following ones.
+     * 
+     * @return true if all the pages are available, false otherwise.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Add a listener notified as pages become available.
+     * 
+     * @param listener listener to add.
+     */
+    public void addPageListener(PageListener listener) {
+        pageListeners.add(listener);
+    }
+
+    /**
+     * Remove a page listener.
+     * 
+     * @param listener listener to remove.
+     */
+    public void removePageListener(PageListener listener) {
+        pageListeners.remove(listener);
+    }
+
+    /**
+     * Set a queue receiving the index of each page as soon as it is
+     * available. If the queue is bounded and full, FOP blocks until there is
+     * room, so that the layout does not run too far ahead of the consumer.
+     * 
+     * @param queue page queue, or null for none.
+     */
+    public void setPageQueue(BlockingQueue<Integer> queue) {
+        pageQueue = queue;
+    }
+
     @Override
     public PageFormat getPageFormat(int pageIndex) {
         PageViewport page = pageViewportList.get(pageIndex);
@@ -128,25 +340,136 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
 
     @Override
     public Printable getPrintable(int pageIndex) {
+        return getPrintable(pageIndex, RenderQuality.NORMAL);
+    }
+
+    /**
+     * Get a printable for the given 0-based page index, rendering with the
+     * given quality profile. Draft quality is meant for thumbnails and live
+     * scrolling, and can be followed by a normal quality rendering.
+     * 
+     * @param pageIndex 0-based page index.
+     * @param renderQuality rendering quality.
+     * @return printable.
+     */
+    public Printable getPrintable(int pageIndex, RenderQuality renderQuality) {
         return new Printable() {
             @Override
             public void print(GC targetGc) {
-                wrapper = new GCWrapper(targetGc);
-                textOutput = new TextOutput(wrapper, true);
-                try {
-                    state = new State();
-                    stateStack = new Stack<>();
+                print(targetGc, null);
+            }
 
-                    currentBPPosition = 0;
-                    currentIPPosition = 0;
-                    renderPageAreas(pageViewportList.get(pageIndex).getPage());
+            @Override
+            public RenderStatus print(GC targetGc, RenderBudget renderBudget) {
+                GCWrapper gcWrapper = new GCWrapper(targetGc, renderQuality);
+                try {
+                    return render(gcWrapper, pageIndex, renderQuality, renderBudget);
                 } finally {
-                    wrapper.dispose();
+                    gcWrapper.dispose();
                 }
             }
         };
     }
 
+    private RenderStatus render(DrawingContext target, int pageIndex, RenderQuality renderQuality,
+            RenderBudget renderBudget) {
+        backgrounds = new BackgroundBatcher(target);
+        wrapper = backgrounds;
+        quality = renderQuality;
+        budget = renderBudget;
+        status = RenderStatus.COMPLETE;
+        textOutput = new TextOutput(wrapper, true, quality);
+        borders.clear();
+        if (indexPages && !pageIndices.containsKey(pageIndex))
+            this.pageIndex = new PageIndex();
+        if (textIndex != null && !textIndex.contains(pageIndex)) {
+            TextIndex.Builder runs = new TextIndex.Builder();
+            textRuns = runs;
+            textOutput.setTextListener((s, x, baseline, extent, metrics) -> {
+                Rectangle2D r = state.getTransform().createTransformedShape(
+                        new Rectangle2D.Float(x, baseline - metrics.ascent, extent, metrics.ascent + metrics.descent))
+                        .getBounds2D();
+                runs.add(s, (float) r.getX(), (float) r.getY(), (float) r.getWidth(), (float) r.getHeight());
+            });
+        }
+        try {
+            state = new State();
+            stateStack = new Stack<>();
+
+            currentBPPosition = 0;
+            currentIPPosition = 0;
+            currentPageViewport = pageViewportList.get(pageIndex);
+            renderPageAreas(currentPageViewport.getPage());
+            flushBorders();
+            wrapper.commitDeferred();
+            if (this.pageIndex != null && status == RenderStatus.COMPLETE) {
+                this.pageIndex.build();
+                pageIndices.put(pageIndex, this.pageIndex);
+            }
+            if (textRuns != null && status == RenderStatus.COMPLETE) {
+                textIndex.add(pageIndex, textRuns);
+            }
+            return status;
+        } finally {
+            wrapper = null;
+            textOutput = null;
+            quality = null;
+            budget = null;
+            currentPageViewport = null;
+            this.pageIndex = null;
+            textRuns = null;
+        }
+    }
+
+    //Check whether the rendering budget is exhausted. Once it is, the remaining blocks
+    //and lines are skipped.
+    private boolean isAborted() {
+        if (status != RenderStatus.COMPLETE)
+            return true;
+        if (budget != null)
+            status = budget.check();
+        return status != RenderStatus.COMPLETE;
+    }
+
+    /**
+     * Record the given page into a display list. This does not involve any
+     * SWT resource and can be called from any thread, as long as it is not
+     * called concurrently on the same renderer. The resulting display list
+     * can then be printed on the device thread.
+     * 
+     * @param pageIndex 0-based page index.
+     * @param fontProvider font provider used to resolve the system fonts. It
+     *            must have been created on the device thread, and must
+     *            remain undisposed while recording.
+     * @return display list.
+     */
+    public DisplayList record(int pageIndex, Base14FontProvider fontProvider) {
+        DisplayList ans = new DisplayList(fontProvider, fontInfo);
+        render(ans, pageIndex, RenderQuality.NORMAL, null);
+        if (cullOccluded)
+            ans.cullOccluded();
+        return ans;
+    }
+
+    /**
+     * Prepare the given page in the background: the page is recorded into a
+     * display list by the given executor, using a dedicated renderer so that
+     * several pages can be prepared in parallel. Only the replay of the
+     * resulting display list (i.e. {@link DisplayList#print(GC)}) needs to
+     * take place on the device thread.
+     * 
+     * @param pageIndex 0-based page index.
+     * @param fontProvider font provider used to resolve the system fonts. It
+     *            must have been created on the device thread, and must
+     *            remain undisposed while recording.
+     * @param executor executor running the preparation.
+     * @return future display list.
+     */
+    public Future<DisplayList> preparePage(int pageIndex, Base14FontProvider fontProvider, ExecutorService executor) {
+        SWTRenderer worker = new SWTRenderer(this);
+        return executor.submit(() -> worker.record(pageIndex, fontProvider));
+    }
+
     @Override
     public FOUserAgent getUserAgent() {
         return userAgent;
@@ -164,22 +487,48 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
 
     @Override
     public void startRenderer(OutputStream out) throws IOException {
-        pageViewportList = new ArrayList<>();
+        pageViewportList.clear();
+        complete = false;
         super.startRenderer(out);
     }
 
     @Override
     public void stopRenderer() throws IOException {
+        complete = true;
+        int count = pageViewportList.size();
+        for (PageListener listener : pageListeners) {
+            listener.renderingComplete(count);
+        }
     }
 
     @Override
     public void renderPage(PageViewport pageViewport) throws IOException, FOPException {
+        int pageIndex;
         try {
-        	currentPageViewport = pageViewport;
-            pageViewportList.add((PageViewport) pageViewport.clone());
+            PageViewport page = (PageViewport) pageViewport.clone();
+            synchronized (pageViewportList) {
+                pageIndex = pageViewportList.size();
+                pageViewportList.add(page);
+            }
         } catch (CloneNotSupportedException e) {
             throw new FOPException(e);
         }
+        if (prefetchImages) {
+            imagePrefetcher.prefetch(pageViewport);
+        }
+
+        BlockingQueue<Integer> queue = pageQueue;
+        if (queue != null) {
+            try {
+                queue.put(Integer.valueOf(pageIndex));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        for (PageListener listener : pageListeners) {
+            listener.pageAvailable(pageIndex);
+        }
     }
 
     @Override
@@ -213,6 +562,8 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
 
     @Override
     protected void endVParea() {
+        //Viewports are z-order boundaries: their pending geometry must be drawn below whatever follows.
+        flushBorders();
         wrapper.commitDeferred();
         restoreGraphicsState();
     }
@@ -288,8 +639,173 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
 
     @Override
     protected void fillRect(float x, float y, float width, float height) {
+        //Backgrounds are merged with their neighbours of the same color.
+        float[] r = toPage(x, y, width, height);
+        if (r == null) {
+            state.configureGC(wrapper);
+            wrapper.fillRectangle(x, y, width, height);
+            return;
+        }
+        backgrounds.fillBackground(Convert.toRGBA(state.getColor()), getPageClip(r), r[0], r[1], r[2], r[3]);
+    }
+
+    //Bring a rectangle expressed in the current transformation to page coordinates, or return null if
+    //the current transformation is not axis-aligned.
+    private float[] toPage(float x, float y, float w, float h) {
+        AffineTransform transform = state.getTransform();
+        if (transform.getShearX() != 0 || transform.getShearY() != 0)
+            return null;
+        float sx = (float) transform.getScaleX();
+        float sy = (float) transform.getScaleY();
+        return new float[] { (float) (x * sx + transform.getTranslateX()), (float) (y * sy + transform.getTranslateY()),
+                w * sx, h * sy };
+    }
+
+    //Get the current clipping area in page coordinates, or null if it doesn't affect the given page
+    //rectangle. Cells all clip to their own area, which would otherwise prevent merging them.
+    private PathData getPageClip(float[] r) {
+        AffineTransform transform = state.getTransform();
+        Area clip = state.getClip();
+        if (transform != pageClipTransform || clip != pageClipSource) {
+            pageClipTransform = transform;
+            pageClipSource = clip;
+            if (clip == null) {
+                pageClip = null;
+                pageClipBounds = null;
+            } else {
+                Area area = clip.createTransformedArea(transform);
+                pageClip = Convert.toPathData(area);
+                pageClipBounds = area.isRectangular() ? area.getBounds2D() : null;
+            }
+        }
+        //Allow for rounding errors: the clip is usually computed from the same coordinates.
+        if (pageClipBounds != null && pageClipBounds.contains(Math.min(r[0], r[0] + r[2]) + 0.01,
+                Math.min(r[1], r[1] + r[3]) + 0.01, Math.abs(r[2]) - 0.02, Math.abs(r[3]) - 0.02))
+            return null;
+        return pageClip;
+    }
+
+    @Override
+    protected void drawBackground(float startx, float starty, float width, float height, Trait.Background back,
+            BorderProps bpsTop, BorderProps bpsBottom, BorderProps bpsLeft, BorderProps bpsRight) {
+        //Background images belong to the background pass, as opposed to regular images.
+        wrapper.setPass(RenderPass.BACKGROUND);
+        background = true;
+        try {
+            if (!fillRepeatedBackground(startx, starty, width, height, back, bpsTop, bpsBottom, bpsLeft, bpsRight))
+                super.drawBackground(startx, starty, width, height, back, bpsTop, bpsBottom, bpsLeft, bpsRight);
+        } finally {
+            wrapper.setPass(null);
+            background = false;
+        }
+    }
+
+    //Fill a repeated background image in one operation, with a pattern, instead of drawing each tile as an
+    //image like the super class does. The tiles are laid out the same way. Return false if the background
+    //must be drawn tile by tile.
+    private boolean fillRepeatedBackground(float startx, float starty, float width, float height,
+            Trait.Background back, BorderProps bpsTop, BorderProps bpsBottom, BorderProps bpsLeft,
+            BorderProps bpsRight) {
+        if (back == null || back.getImageInfo() == null || back.getRepeat() == EN_NOREPEAT
+                || quality == RenderQuality.DRAFT)
+            return false;
+
+        ImageSize size = back.getImageInfo().getSize();
+        double multiplier = 1.0;
+        if (back.getImageTargetWidth() != 0 && back.getImageTargetHeight() != 0) {
+            multiplier = Math.min(1.0 * back.getImageTargetWidth() / size.getWidthMpt(),
+                    1.0 * back.getImageTargetHeight() / size.getHeightMpt());
+        } else if (back.getImageTargetHeight() != 0) {
+            multiplier = 1.0 * back.getImageTargetHeight() / size.getHeightMpt();
+        } else if (back.getImageTargetWidth() != 0) {
+            multiplier = 1.0 * back.getImageTargetWidth() / size.getWidthMpt();
+        }
+        int targetWidth = (int) (size.getWidthMpt() * multiplier);
+        int targetHeight = (int) (size.getHeightMpt() * multiplier);
+        if (targetWidth <= 0 || targetHeight <= 0)
+            return false;
+
+        //Padding rectangle.
+        float left = bpsLeft == null ? 0 : bpsLeft.width / 1000f;
+        float top = bpsTop == null ? 0 : bpsTop.width / 1000f;
+        float sx = startx + left;
+        float sy = starty + top;
+        float w = width - left - (bpsRight == null ? 0 : bpsRight.width / 1000f);
+        float h = height - top - (bpsBottom == null ? 0 : bpsBottom.width / 1000f);
+
+        int horzCount = back.getRepeat() == EN_REPEATY ? 1 : (int) ((w * 1000 / targetWidth) + 1.0f);
+        int vertCount = back.getRepeat() == EN_REPEATX ? 1 : (int) ((h * 1000 / targetHeight) + 1.0f);
+        if (horzCount == 1 && vertCount == 1)
+            return false;
+
+        ImagePrefetcher.PreparedImage prepared;
+        try {
+            prepared = imagePrefetcher.get(URISpecification.getURL(back.getURL()));
+        } catch (ImageException | IOException ex) {
+            //Reported when drawing it tile by tile.
+            return false;
+        }
+        if (!(prepared.image instanceof ImageRendered) || prepared.data == null)
+            return false;
+
+        //Each tile is drawn at its own rendered size, which only matches the spacing of the tiles at the
+        //source resolution.
+        ImageSize info = prepared.info.getSize();
+        float tileW = targetWidth / 1000f;
+        float tileH = targetHeight / 1000f;
+        double renderedW = prepared.data.width * targetWidth / (double) info.getWidthMpt()
+                * userAgent.getSourceResolution() / info.getDpiHorizontal();
+        double renderedH = prepared.data.height * targetHeight / (double) info.getHeightMpt()
+                * userAgent.getSourceResolution() / info.getDpiVertical();
+        if (Math.abs(renderedW - tileW) > 0.01 || Math.abs(renderedH - tileH) > 0.01)
+            return false;
+
+        if (back.getColor() != null) {
+            Trait.Background color = new Trait.Background();
+            color.setColor(back.getColor());
+            super.drawBackground(startx, starty, width, height, color, bpsTop, bpsBottom, bpsLeft, bpsRight);
+        }
+
+        float x = sx + (horzCount == 1 ? back.getHoriz() / 1000f : 0);
+        float y = sy + (vertCount == 1 ? back.getVertical() / 1000f : 0);
+
+        //Images are z-order boundaries: pending geometry must be drawn below them.
+        flushBorders();
+        wrapper.commitDeferred();
+        saveGraphicsState();
+        clipBackground(sx, sy, w, h, bpsTop, bpsBottom, bpsLeft, bpsRight);
         state.configureGC(wrapper);
-        wrapper.fillRectangle(x, y, width, height);
+        wrapper.fillPattern(prepared.data, x, y, horzCount * tileW, vertCount * tileH, x, y, tileW, tileH);
+        restoreGraphicsState();
+        return true;
+    }
+
+    //Add an item to the page index, if any. The rectangle is expressed in the current transformation.
+    private void index(int kind, float x, float y, float w, float h, Object payload) {
+        if (pageIndex == null)
+            return;
+        Rectangle2D r = state.getTransform().createTransformedShape(new Rectangle2D.Float(x, y, w, h)).getBounds2D();
+        pageIndex.add(kind, (float) r.getX(), (float) r.getY(), (float) r.getWidth(), (float) r.getHeight(), payload);
+    }
+
+    @Override
+    protected void handleBlockTraits(Block block) {
+        if (pageIndex != null) {
+            //Same as the area used for the background and borders.
+            float startx = currentIPPosition / 1000f;
+            float starty = currentBPPosition / 1000f;
+            if (block.getBidiLevel() == -1 || (block.getBidiLevel() & 1) == 0) {
+                startx += (block.getStartIndent() - block.getBorderAndPaddingWidthStart()) / 1000f;
+            } else {
+                startx += (block.getEndIndent() - block.getBorderAndPaddingWidthEnd()) / 1000f;
+            }
+            float width = (block.getIPD() + block.getBorderAndPaddingWidthStart() + block.getBorderAndPaddingWidthEnd())
+                    / 1000f;
+            float height = (block.getBPD() + block.getBorderAndPaddingWidthBefore()
+                    + block.getBorderAndPaddingWidthAfter()) / 1000f;
+            index(PageIndex.BLOCK, startx, starty, width, height, null);
+        }
+        super.handleBlockTraits(block);
     }
 
     @Override
@@ -331,26 +847,22 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
         return false;
     }
 
-    private BasicStroke getStroke(BorderProps p) {
-        return getStroke(p, 1f);
-    }
-
-    private BasicStroke getStroke(BorderProps p, float weightFactor) {
-        float width = p.width / 1000f * weightFactor;
-        float unit = Math.abs(4 * width);
-
-        switch (p.style) {
-        case Constants.EN_DOTTED:
-            return new BasicStroke(width, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10.0f, new float[] { unit / 4.0f, unit / 2.0f }, 0);
-        case Constants.EN_DASHED:
-            return new BasicStroke(width, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10.0f, new float[] { unit, unit }, 0);
-        case Constants.EN_SOLID:
-        default:
-            return new BasicStroke(width, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER);
+    //Fill, as deferred geometry, the dots or dashes of a line from x1,y1 to x2,y2.
+    private void drawDashes(BorderProps props, float x1, float y1, float x2, float y2) {
+        float width = Math.abs(props.width / 1000f);
+        PathData path;
+        if (props.style == Constants.EN_DOTTED) {
+            path = DashGeometry.createDashes(width, 2 * width, width, x1, y1, x2, y2);
+        } else {
+            path = DashGeometry.createDashes(4 * width, 4 * width, width, x1, y1, x2, y2);
+        }
+        if (path != null) {
+            wrapper.setColor(Convert.toRGBA(props.color));
+            wrapper.fillPathDeferred(path);
         }
     }
 
-    private void drawRectangle(float x, float y, float w, float h, float weight, boolean deferred) {
+    private void drawRectangle(float x, float y, float w, float h, float weight) {
         PathData path = new PathData();
         path.types = new byte[] {
                 SWT.PATH_MOVE_TO,
@@ -377,17 +889,63 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
                 x + weight / 2, y + weight / 2,
 
         };        
-        if (deferred) {
-            wrapper.fillPathDeferred(path);
-        } else {
-            wrapper.fillPath(path);
-        }
+        wrapper.fillPathDeferred(path);
 
     }
 
+    //Get the border style to draw: draft quality doesn't bother with groove and ridge shading.
+    private int getStyle(BorderProps props) {
+        if (quality == RenderQuality.DRAFT && (props.style == EN_GROOVE || props.style == EN_RIDGE))
+            return Constants.EN_SOLID;
+        return props.style;
+    }
+
+    //Fill, as deferred geometry, the band between the chord x,y,w,h grown by outer and grown by inner
+    //(outer > inner), with one color for its top-left half and one for its bottom-right half.
+    private void fillBevel(float x, float y, float w, float h, float outer, float inner, Color topLeft,
+            Color bottomRight) {
+        float lo = x - outer;
+        float to = y - outer;
+        float ro = x + w + outer;
+        float bo = y + h + outer;
+        float li = x - inner;
+        float ti = y - inner;
+        float ri = x + w + inner;
+        float bi = y + h + inner;
+
+        PathData path = new PathData();
+        path.types = new byte[] {
+                SWT.PATH_MOVE_TO,
+                SWT.PATH_LINE_TO,
+                SWT.PATH_LINE_TO,
+                SWT.PATH_LINE_TO,
+                SWT.PATH_LINE_TO,
+                SWT.PATH_LINE_TO,
+                SWT.PATH_CLOSE };
+        path.points = new float[] {
+                lo, to,
+                ro, to,
+                ri, ti,
+                li, ti,
+                li, bi,
+                lo, bo };
+        wrapper.setColor(Convert.toRGBA(topLeft));
+        wrapper.fillPathDeferred(path);
+
+        path.points = new float[] {
+                ro, to,
+                ro, bo,
+                lo, bo,
+                li, bi,
+                ri, bi,
+                ri, ti };
+        wrapper.setColor(Convert.toRGBA(bottomRight));
+        wrapper.fillPathDeferred(path);
+    }
+
     //Draw a rectangle from x,y and of size w,h as chord.
     private void drawRectangle(float x, float y, float w, float h, BorderProps props, boolean fill) {
-        switch (props.style) {
+        switch (getStyle(props)) {
         case Constants.EN_HIDDEN:
         case Constants.EN_NONE:
             break;
@@ -396,73 +954,22 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
             float weight = props.width / 1000f;
             float leftMost = x - weight / 2;
             float topMost = y - weight / 2;
-            drawRectangle(leftMost + weight / 6, topMost + weight / 6, w + weight * 2 / 3, h + weight * 2 / 3, weight / 3, true);
-            drawRectangle(leftMost + 5 * weight / 6, topMost + 5 * weight / 6, w - weight * 2 / 3, h - weight * 2 / 3, weight / 3, true);
+            drawRectangle(leftMost + weight / 6, topMost + weight / 6, w + weight * 2 / 3, h + weight * 2 / 3, weight / 3);
+            drawRectangle(leftMost + 5 * weight / 6, topMost + 5 * weight / 6, w - weight * 2 / 3, h - weight * 2 / 3, weight / 3);
             break;
         }
         case Constants.EN_GROOVE:
         case Constants.EN_RIDGE: {
             float weight = props.width / 1000f;
-            float leftMost = x - weight / 2;
-            float topMost = y - weight / 2;
             float colFactor = (props.style == EN_GROOVE ? 0.4f : -0.4f);
             Color uppercol = ColorUtil.lightenColor(props.color, -colFactor);
             Color lowercol = ColorUtil.lightenColor(props.color, colFactor);
 
-            //Because we'll be doing some overdrawing, we can't defer it.
-
-            wrapper.setColor(Convert.toRGBA(uppercol));
-            PathData path = new PathData();
-            path.types = new byte[] {
-                    SWT.PATH_MOVE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_CLOSE };
-
-            path.points = new float[] {
-                    leftMost, topMost,
-                    leftMost + w + weight, topMost,
-                    leftMost + w + 2 * weight / 3, topMost + weight / 3,
-                    leftMost + weight / 3, topMost + weight / 3,
-                    leftMost + weight / 3, topMost + h + weight * 2 / 3,
-                    leftMost, topMost + h + weight
-            };
-            wrapper.fillPath(path);
-            path.points = new float[] {
-                    leftMost + w + weight / 3, topMost + 2 * weight / 3,
-                    leftMost + w, topMost + weight,
-                    leftMost + w, topMost + h,
-                    leftMost + weight, topMost + h,
-                    leftMost + 2 * weight / 3, topMost + h + weight / 3,
-                    leftMost + w + weight / 3, topMost + h + weight / 3
-            };
-            wrapper.fillPath(path);
-
-            wrapper.setColor(Convert.toRGBA(lowercol));
-            path.points = new float[] {
-                    leftMost + w + weight, topMost,
-                    leftMost + w + 2 * weight / 3, topMost + weight / 3,
-                    leftMost + w + 2 * weight / 3, topMost + h + 2 * weight / 3,
-                    leftMost + weight / 3, topMost + h + 2 * weight / 3,
-                    leftMost, topMost + h + weight,
-                    leftMost + w + weight, topMost + h + weight
-            };
-            wrapper.fillPath(path);
-            path.points = new float[] {
-                    leftMost + 2 * weight / 3, topMost + 2 * weight / 3,
-                    leftMost + w + weight / 3, topMost + 2 * weight / 3,
-                    leftMost + w, topMost + weight,
-                    leftMost + weight, topMost + weight,
-                    leftMost + weight, topMost + h,
-                    leftMost + 2 * weight / 3, topMost + h + weight / 3
-            };
-            wrapper.fillPath(path);
-
+            //Outer sixth, middle ring and inner sixth don't overlap, so all of it can be deferred.
+            fillBevel(x, y, w, h, weight / 2, weight / 3, uppercol, lowercol);
             wrapper.setColor(Convert.toRGBA(props.color));
-            drawRectangle(x, y, w, h, weight * 2.0f / 3f, false);
+            drawRectangle(x, y, w, h, weight * 2.0f / 3f);
+            fillBevel(x, y, w, h, -weight / 3, -weight / 2, lowercol, uppercol);
             break;
         }
         case Constants.EN_INSET:
@@ -471,49 +978,32 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
             float colFactor = (props.style == EN_OUTSET ? 0.4f : -0.4f);
             Color uppercol = ColorUtil.lightenColor(props.color, -colFactor);
             Color lowercol = ColorUtil.lightenColor(props.color, colFactor);
-            wrapper.setColor(Convert.toRGBA(lowercol));
-            PathData path = new PathData();
-            path.types = new byte[] {
-                    SWT.PATH_MOVE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_CLOSE };
-            path.points = new float[] {
-                    x - weight / 2, y - weight / 2,
-                    x + w + weight / 2, y - weight / 2,
-                    x + w - weight / 2, y + weight / 2,
-                    x + weight / 2, y + weight / 2,
-                    x + weight / 2, y + h - weight / 2,
-                    x - weight / 2, y + h + weight / 2 };
-            wrapper.fillPathDeferred(path);
-
-            wrapper.setColor(Convert.toRGBA(uppercol));
-            path.points = new float[] {
-                    x + w + weight / 2, y - weight / 2,
-                    x + w - weight / 2, y + weight / 2,
-                    x + w - weight / 2, y + h - weight / 2,
-                    x + weight / 2, y + h - weight / 2,
-                    x - weight / 2, y + h + weight / 2,
-                    x + w + weight / 2, y + h + weight / 2
-
-            };
-            wrapper.fillPathDeferred(path);
-
+            fillBevel(x, y, w, h, weight / 2, -weight / 2, lowercol, uppercol);
             break;
         }
         case Constants.EN_DOTTED:
-        case Constants.EN_DASHED:
-            wrapper.setColor(Convert.toRGBA(props.color));
-            wrapper.setLineAttributes(Convert.toLineAttributes(getStroke(props)));
-            wrapper.drawRectangle(x, y, w, h);
+        case Constants.EN_DASHED: {
+            //Each side starts with a dash at its own corner, and spans the whole outer length so that corners are filled.
+            float weight = props.width / 1000f;
+            drawDashes(props, x - weight / 2, y, x + w + weight / 2, y);
+            drawDashes(props, x + w, y - weight / 2, x + w, y + h + weight / 2);
+            drawDashes(props, x + w + weight / 2, y + h, x - weight / 2, y + h);
+            drawDashes(props, x, y + h + weight / 2, x, y - weight / 2);
             break;
+        }
         case Constants.EN_SOLID:
         default:
-            wrapper.setColor(Convert.toRGBA(props.color));
-            drawRectangle(x, y, w, h, props.width / 1000f, true);
+            float weight = props.width / 1000f;
+            if (props.getMode() != Mode.SEPARATE) {
+                //Full-length sides, so that they merge with the ones of the neighbour cells.
+                addBorder(props.color, x - weight / 2, y - weight / 2, w + weight, weight);
+                addBorder(props.color, x - weight / 2, y + h - weight / 2, w + weight, weight);
+                addBorder(props.color, x - weight / 2, y - weight / 2, weight, h + weight);
+                addBorder(props.color, x + w - weight / 2, y - weight / 2, weight, h + weight);
+            } else {
+                wrapper.setColor(Convert.toRGBA(props.color));
+                drawRectangle(x, y, w, h, weight);
+            }
             break;
         }
 
@@ -525,111 +1015,140 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
     }
 
     private void drawHTrapeze(float x1, float y1, float x2, float x3, float y3, float x4, boolean top, boolean allowDeferred, BorderProps props) {
-        switch (props.style) {
+        switch (getStyle(props)) {
         case Constants.EN_HIDDEN:
         case Constants.EN_NONE:
             break;
-        case Constants.EN_DOUBLE: {
-            BorderProps p2 = new BorderProps(Constants.EN_SOLID, props.width / 3, props.getRadiusStart(), props.getRadiusEnd(), props.color, Mode.SEPARATE);
-            drawHTrapeze(x1, y1, x2, (x2 * 2 + x3) / 3, (y1 * 2 + y3) / 3, (x1 * 2 + x4) / 3, top, allowDeferred, p2);
-            drawHTrapeze((x1 + x4 * 2) / 3, (y1 + y3 * 2) / 3, (x2 + x3 * 2) / 3, x3, y3, x4, top, allowDeferred, p2);
+        case Constants.EN_DOUBLE:
+            fillHTrapeze(x1, y1, x2, (x2 * 2 + x3) / 3, (y1 * 2 + y3) / 3, (x1 * 2 + x4) / 3, props.color, allowDeferred);
+            fillHTrapeze((x1 + x4 * 2) / 3, (y1 + y3 * 2) / 3, (x2 + x3 * 2) / 3, x3, y3, x4, props.color, allowDeferred);
             break;
-        }
         case Constants.EN_GROOVE:
         case Constants.EN_RIDGE: {
             float colFactor = (props.style == EN_GROOVE ? 0.4f : -0.4f);
             Color uppercol = ColorUtil.lightenColor(props.color, -colFactor);
-            BorderProps upperp = new BorderProps(Constants.EN_SOLID, props.width / 3, props.getRadiusStart(), props.getRadiusEnd(), uppercol, Mode.SEPARATE);
             Color lowercol = ColorUtil.lightenColor(props.color, colFactor);
-            BorderProps lowerp = new BorderProps(Constants.EN_SOLID, props.width / 3, props.getRadiusStart(), props.getRadiusEnd(), lowercol, Mode.SEPARATE);
-            BorderProps p2 = new BorderProps(Constants.EN_SOLID, props.width / 3, props.getRadiusStart(), props.getRadiusEnd(), props.color, Mode.SEPARATE);
 
-            //Because we'll be doing some overdrawing, we can't defer it.
-            drawHTrapeze(x1, y1, x2, (x2 * 5 + x3) / 6, (y1 * 5 + y3) / 6, (x1 * 5 + x4) / 6, top, false, upperp);
-            drawHTrapeze((x1 + x4 * 5) / 6, (y1 + y3 * 5) / 6, (x2 + x3 * 5) / 6, (x2 * 5 + x3) / 6, (y1 * 5 + y3) / 6, (x1 * 5 + x4) / 6, top, false, p2);
-            drawHTrapeze((x1 + x4 * 5) / 6, (y1 + y3 * 5) / 6, (x2 + x3 * 5) / 6, x3, y3, x4, top, false, lowerp);
+            //Outer sixth, middle and inner sixth don't overlap.
+            fillHTrapeze(x1, y1, x2, (x2 * 5 + x3) / 6, (y1 * 5 + y3) / 6, (x1 * 5 + x4) / 6, uppercol, allowDeferred);
+            fillHTrapeze((x1 * 5 + x4) / 6, (y1 * 5 + y3) / 6, (x2 * 5 + x3) / 6, (x2 + x3 * 5) / 6, (y1 + y3 * 5) / 6, (x1 + x4 * 5) / 6, props.color, allowDeferred);
+            fillHTrapeze((x1 + x4 * 5) / 6, (y1 + y3 * 5) / 6, (x2 + x3 * 5) / 6, x3, y3, x4, lowercol, allowDeferred);
             break;
         }
         case Constants.EN_INSET:
         case Constants.EN_OUTSET: {
             float colFactor = (props.style == EN_OUTSET ? 0.4f : -0.4f);
             Color col = ColorUtil.lightenColor(props.color, (top ? 1 : -1) * colFactor);
-            BorderProps p2 = new BorderProps(Constants.EN_SOLID, props.width, props.getRadiusStart(), props.getRadiusEnd(), col, Mode.SEPARATE);
-            drawHTrapeze(x1, y1, x2, x3, y3, x4, top, allowDeferred, p2);
+            fillHTrapeze(x1, y1, x2, x3, y3, x4, col, allowDeferred);
             break;
         }
         case Constants.EN_DOTTED:
         case Constants.EN_DASHED:
-            wrapper.setColor(Convert.toRGBA(props.color));
-            wrapper.setLineAttributes(Convert.toLineAttributes(getStroke(props)));
-            wrapper.drawLine((x1 + x4) / 2f, (y1 + y3) / 2f, (x2 + x3) / 2f, (y1 + y3) / 2f);
+            drawDashes(props, (x1 + x4) / 2f, (y1 + y3) / 2f, (x2 + x3) / 2f, (y1 + y3) / 2f);
             break;
         case Constants.EN_SOLID:
         default:
-            PathData path = new PathData();
-            path.types = new byte[] {
-                    SWT.PATH_MOVE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_LINE_TO,
-                    SWT.PATH_CLOSE };
-            path.points = new float[] {
-                    x1, y1,
-                    x2, y1,
-                    x3, y3,
-                    x4, y3 };
-            wrapper.setColor(Convert.toRGBA(props.color));
-            if (allowDeferred) {
-                wrapper.fillPathDeferred(path);
+            if (allowDeferred && props.getMode() != Mode.SEPARATE && x1 == x4 && x2 == x3) {
+                addBorder(props.color, x1, y1, x2 - x1, y3 - y1);
             } else {
-                wrapper.fillPath(path);
+                fillHTrapeze(x1, y1, x2, x3, y3, x4, props.color, allowDeferred);
             }
             break;
         }
     }
 
+    //Fill the trapeze whose top side goes from x1 to x2 at y1 and whose bottom side goes from x4 to x3 at y3.
+    private void fillHTrapeze(float x1, float y1, float x2, float x3, float y3, float x4, Color color, boolean deferred) {
+        PathData path = new PathData();
+        path.types = new byte[] {
+                SWT.PATH_MOVE_TO,
+                SWT.PATH_LINE_TO,
+                SWT.PATH_LINE_TO,
+                SWT.PATH_LINE_TO,
+                SWT.PATH_CLOSE };
+        path.points = new float[] {
+                x1, y1,
+                x2, y1,
+                x3, y3,
+                x4, y3 };
+        wrapper.setColor(Convert.toRGBA(color));
+        if (deferred) {
+            wrapper.fillPathDeferred(path);
+        } else {
+            wrapper.fillPath(path);
+        }
+    }
+
     private void drawVTrapeze(float x1, float y1, float x2, float y2, float y3, float y4, boolean left, boolean allowDeferred, BorderProps props) {
-        switch (props.style) {
+        switch (getStyle(props)) {
         case Constants.EN_HIDDEN:
         case Constants.EN_NONE:
             break;
-        case Constants.EN_DOUBLE: {
-            BorderProps p2 = new BorderProps(Constants.EN_SOLID, props.width / 3, props.getRadiusStart(), props.getRadiusEnd(), props.color, Mode.SEPARATE);
-            drawVTrapeze(x1, y1, (x1 * 2 + x2) / 3, (y1 * 2 + y2) / 3, (y3 + y4 * 2) / 3, y4, left, allowDeferred, p2);
-            drawVTrapeze((x1 + x2 * 2) / 3, (y1 + y2 * 2) / 3, x2, y2, y3, (y3 * 2 + y4) / 3, left, allowDeferred, p2);
+        case Constants.EN_DOUBLE:
+            fillVTrapeze(x1, y1, (x1 * 2 + x2) / 3, (y1 * 2 + y2) / 3, (y3 + y4 * 2) / 3, y4, props.color, allowDeferred);
+            fillVTrapeze((x1 + x2 * 2) / 3, (y1 + y2 * 2) / 3, x2, y2, y3, (y3 * 2 + y4) / 3, props.color, allowDeferred);
             break;
-        }
         case Constants.EN_GROOVE:
         case Constants.EN_RIDGE: {
             float colFactor = (props.style == EN_GROOVE ? 0.4f : -0.4f);
             Color uppercol = ColorUtil.lightenColor(props.color, -colFactor);
-            BorderProps upperp = new BorderProps(Constants.EN_SOLID, props.width / 3, props.getRadiusStart(), props.getRadiusEnd(), uppercol, Mode.SEPARATE);
             Color lowercol = ColorUtil.lightenColor(props.color, colFactor);
-            BorderProps lowerp = new BorderProps(Constants.EN_SOLID, props.width / 3, props.getRadiusStart(), props.getRadiusEnd(), lowercol, Mode.SEPARATE);
-            BorderProps p2 = new BorderProps(Constants.EN_SOLID, props.width / 3, props.getRadiusStart(), props.getRadiusEnd(), props.color, Mode.SEPARATE);
 
-            //Because we'll be doing some overdrawing, we can't defer it.
-            drawVTrapeze(x1, y1, (x1 * 5 + x2) / 6, (y1 * 5 + y2) / 6, (y3 + y4 * 5) / 6, y4, left, false, upperp);
-            drawVTrapeze((x1 + x2 * 5) / 6, (y1 + y2 * 5) / 6, (x1 * 5 + x2) / 6, (y1 * 5 + y2) / 6, (y3 + y4 * 5) / 6, (y3 * 5 + y4) / 6, left, false, p2);
-            drawVTrapeze((x1 + x2 * 5) / 6, (y1 + y2 * 5) / 6, x2, y2, y3, (y3 * 5 + y4) / 6, left, false, lowerp);
+            //Outer sixth, middle and inner sixth don't overlap.
+            fillVTrapeze(x1, y1, (x1 * 5 + x2) / 6, (y1 * 5 + y2) / 6, (y3 + y4 * 5) / 6, y4, uppercol, allowDeferred);
+            fillVTrapeze((x1 * 5 + x2) / 6, (y1 * 5 + y2) / 6, (x1 + x2 * 5) / 6, (y1 + y2 * 5) / 6, (y3 * 5 + y4) / 6, (y3 + y4 * 5) / 6, props.color, allowDeferred);
+            fillVTrapeze((x1 + x2 * 5) / 6, (y1 + y2 * 5) / 6, x2, y2, y3, (y3 * 5 + y4) / 6, lowercol, allowDeferred);
             break;
         }
         case Constants.EN_INSET:
         case Constants.EN_OUTSET: {
             float colFactor = (props.style == EN_OUTSET ? 0.4f : -0.4f);
             Color col = ColorUtil.lightenColor(props.color, (left ? 1 : -1) * colFactor);
-            BorderProps p2 = new BorderProps(Constants.EN_SOLID, props.width, props.getRadiusStart(), props.getRadiusEnd(), col, Mode.SEPARATE);
-            drawVTrapeze(x1, y1, x2, y2, y3, y4, left, allowDeferred, p2);
+            fillVTrapeze(x1, y1, x2, y2, y3, y4, col, allowDeferred);
             break;
         }
         case Constants.EN_DOTTED:
         case Constants.EN_DASHED:
-            wrapper.setColor(Convert.toRGBA(props.color));
-            wrapper.setLineAttributes(Convert.toLineAttributes(getStroke(props)));
-            wrapper.drawLine((x1 + x2) / 2f, (y1 + y2) / 2f, (x1 + x2) / 2f, (y3 + y4) / 2f);
+            drawDashes(props, (x1 + x2) / 2f, (y1 + y2) / 2f, (x1 + x2) / 2f, (y3 + y4) / 2f);
             break;
         case Constants.EN_SOLID:
         default:
+            if (allowDeferred && props.getMode() != Mode.SEPARATE && y1 == y2 && y3 == y4) {
+                addBorder(props.color, x1, y1, x2 - x1, y4 - y1);
+            } else {
+                fillVTrapeze(x1, y1, x2, y2, y3, y4, props.color, allowDeferred);
+            }
+            break;
+        }
+    }
+
+    //Fill the trapeze whose left side goes from y1 to y4 at x1 and whose right side goes from y2 to y3 at x2.
+    private void fillVTrapeze(float x1, float y1, float x2, float y2, float y3, float y4, Color color, boolean deferred) {
+        PathData path = new PathData();
+        path.types = new byte[] {
+                SWT.PATH_MOVE_TO,
+                SWT.PATH_LINE_TO,
+                SWT.PATH_LINE_TO,
+                SWT.PATH_LINE_TO,
+                SWT.PATH_CLOSE };
+        path.points = new float[] {
+                x1, y1,
+                x2, y2,
+                x2, y3,
+                x1, y4 };
+        wrapper.setColor(Convert.toRGBA(color));
+        if (deferred) {
+            wrapper.fillPathDeferred(path);
+        } else {
+            wrapper.fillPath(path);
+        }
+    }
+
+    //Add a solid collapsed border segment, to be merged with its neighbours and drawn as deferred geometry.
+    //Cells are drawn in their own coordinates, so segments are brought back to page coordinates when possible.
+    private void addBorder(Color color, float x, float y, float w, float h) {
+        float[] r = toPage(x, y, w, h);
+        if (r == null) {
             PathData path = new PathData();
             path.types = new byte[] {
                     SWT.PATH_MOVE_TO,
@@ -638,18 +1157,28 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
                     SWT.PATH_LINE_TO,
                     SWT.PATH_CLOSE };
             path.points = new float[] {
-                    x1, y1,
-                    x2, y2,
-                    x2, y3,
-                    x1, y4 };
-            wrapper.setColor(Convert.toRGBA(props.color));
-            if (allowDeferred) {
-                wrapper.fillPathDeferred(path);
-            } else {
-                wrapper.fillPath(path);
-            }
-            break;
+                    x, y,
+                    x + w, y,
+                    x + w, y + h,
+                    x, y + h };
+            wrapper.setColor(Convert.toRGBA(color));
+            wrapper.fillPathDeferred(path);
+            return;
         }
+        borders.add(Convert.toRGBA(color), getPageClip(r), r[0], r[1], r[2], r[3]);
+    }
+
+    //Send the merged border segments to the drawing context, and restore it to the current state.
+    private void flushBorders() {
+        if (borders.isEmpty())
+            return;
+        borders.flush((color, clip, path) -> {
+            wrapper.setTransform(Convert.toFloatArray(new AffineTransform()));
+            wrapper.setClipping(clip);
+            wrapper.setColor(color);
+            wrapper.fillPathDeferred(path);
+        });
+        state.configureGC(wrapper);
     }
 
     private final static Color BLACK = new Color(0, 0, 0);
@@ -835,14 +1364,34 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
         restoreGraphicsState();
     }
 
+    @Override
+    protected void renderBlock(Block block) {
+        if (isAborted())
+            return;
+        super.renderBlock(block);
+    }
+
     @Override
     protected void renderLineArea(LineArea line) {
+        if (isAborted())
+            return;
         super.renderLineArea(line);
         textOutput.endLine();
     }
 
     @Override
     protected void renderInlineParent(InlineParent ip) {
+        if (pageIndex != null) {
+            Object link = ip.getTrait(Trait.INTERNAL_LINK);
+            if (link == null)
+                link = ip.getTrait(Trait.EXTERNAL_LINK);
+            if (link != null) {
+                index(PageIndex.LINK, currentIPPosition / 1000f,
+                        (currentBPPosition + ip.getBlockProgressionOffset()) / 1000f, ip.getIPD() / 1000f,
+                        ip.getBPD() / 1000f, link);
+            }
+        }
+
         if (!(ip instanceof FilledArea) || ((ip.getBidiLevel() & 1) == 0)) {
             super.renderInlineParent(ip);
             return;
@@ -855,6 +1404,10 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
             return;
         }
 
+        if (!(children.get(0) instanceof TextArea)) {
+            super.renderInlineParent(ip);
+            return;
+        }
         TextArea first = (TextArea) children.get(0);
 
         boolean coalesce = true;
@@ -882,12 +1435,18 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
         Typeface tf = fontInfo.getFonts().get(font.getFontName());
         state.updateFont(tf.getFontName(), font.getFontSize());
         state.configureGC(wrapper);
-        float distance = Math.abs(totalIPD / 1000.0f - wrapper.stringExtentWidth(concat.toString()));
-        if (distance > 0.5f) {
-            //We allow for max one half pixel difference
-            //Too much distance, we missed something!
-            super.renderInlineParent(ip);
-            return;
+        String text = concat.toString();
+        if (fopMetrics) {
+            //FOP's metrics are authoritative, no need to double check against SWT.
+            validateExtent(text, totalIPD / 1000f);
+        } else {
+            float distance = Math.abs(totalIPD / 1000.0f - wrapper.stringExtentWidth(text));
+            if (distance > 0.5f) {
+                //We allow for max one half pixel difference
+                //Too much distance, we missed something!
+                super.renderInlineParent(ip);
+                return;
+            }
         }
 
         renderInlineAreaBackAndBorders(ip);
@@ -897,7 +1456,8 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
 
         Color col = (Color) first.getTrait(Trait.COLOR);
 
-        textOutput.text(concat.toString(), rx / 1000f, bl / 1000f, tf.getFontName(), font.getFontSize(), Convert.toRGBA(col), null, null, null);
+        textOutput.text(text, rx / 1000f, bl / 1000f, tf.getFontName(), font.getFontSize(), Convert.toRGBA(col), null, null, null,
+                fopMetrics ? totalIPD / 1000f : Float.NaN);
 
         currentIPPosition += ip.getAllocIPD();
     }
@@ -919,6 +1479,10 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
         int fontsize = text.getTraitAsInteger(Trait.FONT_SIZE);
 
         renderText(text, font, tf.getFontName(), fontsize, rx / 1000f, bl / 1000f, col);
+        if (pageIndex != null) {
+            index(PageIndex.TEXT, rx / 1000f, (currentBPPosition + text.getBlockProgressionOffset()) / 1000f,
+                    text.getIPD() / 1000f, text.getBPD() / 1000f, text.getText());
+        }
 
         currentIPPosition = saveIP + text.getAllocIPD();
     }
@@ -928,10 +1492,12 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
 
         //Optimize: if trivial set of words and spaces, append everything and draw in one go
         StringBuilder concat = new StringBuilder();
+        int concatIPD = 0;
         Iterator iter = text.getChildAreas().iterator();
         boolean trivial = true;
         while (iter.hasNext()) {
             InlineArea child = (InlineArea) iter.next();
+            concatIPD += child.getIPD();
             if (child instanceof WordArea) {
                 WordArea word = (WordArea) child;
                 concat.append(word.getWord());
@@ -953,6 +1519,11 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
         }
 
         if (trivial) {
+            float extent = Float.NaN;
+            if (fopMetrics) {
+                extent = concatIPD / 1000f;
+                validateExtent(concat.toString(), extent);
+            }
             textOutput.text(
                     concat.toString(),
                     textCursor,
@@ -962,7 +1533,8 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
                     Convert.toRGBA(color),
                     text.hasUnderline() ? Convert.toRGBA((Color) text.getTrait(Trait.UNDERLINE_COLOR)) : null,
                     text.hasLineThrough() ? Convert.toRGBA((Color) text.getTrait(Trait.LINETHROUGH_COLOR)) : null,
-                    text.hasOverline() ? Convert.toRGBA((Color) text.getTrait(Trait.OVERLINE_COLOR)) : null);
+                    text.hasOverline() ? Convert.toRGBA((Color) text.getTrait(Trait.OVERLINE_COLOR)) : null,
+                    extent);
         } else {
             iter = text.getChildAreas().iterator();
             while (iter.hasNext()) {
@@ -970,6 +1542,11 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
                 if (child instanceof WordArea) {
                     WordArea word = (WordArea) child;
                     String s = word.getWord();
+                    float extent = Float.NaN;
+                    if (fopMetrics) {
+                        extent = word.getIPD() / 1000f;
+                        validateExtent(s, extent);
+                    }
                     textOutput.text(
                             s,
                             textCursor,
@@ -979,8 +1556,9 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
                             Convert.toRGBA(color),
                             text.hasUnderline() ? Convert.toRGBA((Color) text.getTrait(Trait.UNDERLINE_COLOR)) : null,
                             text.hasLineThrough() ? Convert.toRGBA((Color) text.getTrait(Trait.LINETHROUGH_COLOR)) : null,
-                            text.hasOverline() ? Convert.toRGBA((Color) text.getTrait(Trait.OVERLINE_COLOR)) : null);
-                    textCursor += wrapper.stringExtentWidth(s);
+                            text.hasOverline() ? Convert.toRGBA((Color) text.getTrait(Trait.OVERLINE_COLOR)) : null,
+                            extent);
+                    textCursor += fopMetrics ? extent : wrapper.stringExtentWidth(s);
                 } else if (child instanceof SpaceArea) {
                     SpaceArea space = (SpaceArea) child;
                     String s = space.getSpace();
@@ -1006,6 +1584,7 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
 
         Color col = (Color) area.getTrait(Trait.COLOR);
         state.updateColor(col);
+        state.configureGC(wrapper);
 
         float ruleThickness = area.getRuleThickness() / 1000f;
 
@@ -1025,33 +1604,11 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
         super.renderLeader(area);
     }
 
-    private void drawRenderedImage(RenderedImage image, AffineTransform at) {
+    private void drawRenderedImage(ImageData data, AffineTransform at) {
         saveGraphicsState();
         state.combineTransform(at);
         state.configureGC(wrapper);
-
-        ColorModel color = image.getColorModel();
-
-        Raster raster = image.getData();
-
-        ImageData imageData = new ImageData(raster.getWidth(), raster.getHeight(), 32,
-                new PaletteData(0xFF0000, 0xFF00, 0xFF));
-
-        Object data = null;
-        for (int i = 0; i < raster.getWidth(); i++) {
-            for (int j = 0; j < raster.getHeight(); j++) {
-                data = raster.getDataElements(i, j, data);
-                int rgb = color.getRGB(data);
-                imageData.setPixel(i, j, rgb & 0xFFFFFF);
-                imageData.setAlpha(i, j, (rgb >> 24) & 0xFF);
-            }
-        }
-        org.eclipse.swt.graphics.Image swtImage = new org.eclipse.swt.graphics.Image(wrapper.getDevice(), imageData);
-        try {
-            wrapper.drawImage(swtImage, 0, 0);
-        } finally {
-            swtImage.dispose();
-        }
+        wrapper.drawImage(data, 0, 0);
         restoreGraphicsState();
     }
 
@@ -1061,33 +1618,50 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
         drawImage(url, pos);
     }
 
+    //XML documents (i.e. SVG) are converted to Graphics2D when possible, so that they get rasterised.
     private static final ImageFlavor[] FLAVOURS = new ImageFlavor[] { ImageFlavor.BUFFERED_IMAGE,
-            ImageFlavor.RENDERED_IMAGE, ImageFlavor.XML_DOM };
+            ImageFlavor.RENDERED_IMAGE, ImageFlavor.GRAPHICS2D, ImageFlavor.XML_DOM };
+
+    //In draft quality, images smaller than this (in mpt) are replaced by a placeholder.
+    private static final double DRAFT_IMAGE_THRESHOLD = 144000;
+    private static final RGBA PLACEHOLDER_COLOR = new RGBA(224, 224, 224, 255);
 
     @Override
     protected void drawImage(String uri, Rectangle2D pos, Map foreignAttributes) {
+        //Images are z-order boundaries: pending geometry must be drawn below them.
+        flushBorders();
+        wrapper.commitDeferred();
 
         int x = currentIPPosition + (int) Math.round(pos.getX());
         int y = currentBPPosition + (int) Math.round(pos.getY());
+        if (!background) {
+            index(PageIndex.IMAGE, x / 1000f, y / 1000f, (float) pos.getWidth() / 1000f, (float) pos.getHeight() / 1000f,
+                    uri);
+        }
+
+        if (quality == RenderQuality.DRAFT && pos.getWidth() < DRAFT_IMAGE_THRESHOLD
+                && pos.getHeight() < DRAFT_IMAGE_THRESHOLD) {
+            //Not worth loading the image for a thumbnail.
+            state.configureGC(wrapper);
+            wrapper.setColor(PLACEHOLDER_COLOR);
+            wrapper.fillRectangle(x / 1000f, y / 1000f, (float) pos.getWidth() / 1000f,
+                    (float) pos.getHeight() / 1000f);
+            return;
+        }
+
         uri = URISpecification.getURL(uri);
 
-        ImageManager manager = getUserAgent().getImageManager();
         ImageInfo info = null;
 
         try {
-            ImageSessionContext sessionContext = getUserAgent().getImageSessionContext();
-            info = manager.getImageInfo(uri, sessionContext);
-            Map hints = ImageUtil.getDefaultHints(sessionContext);
-            org.apache.xmlgraphics.image.loader.Image img = manager.getImage(info, FLAVOURS, hints, sessionContext);
+            //Most likely already loaded in the background.
+            ImagePrefetcher.PreparedImage prepared = imagePrefetcher.get(uri);
+            info = prepared.info;
+            org.apache.xmlgraphics.image.loader.Image img = prepared.image;
 
             if (img instanceof ImageGraphics2D) {
-                ImageGraphics2D imageG2D = (ImageGraphics2D) img;
-                int width = (int) pos.getWidth();
-                int height = (int) pos.getHeight();
-                RendererContext context = createRendererContext(x, y, width, height, foreignAttributes);
-                getGraphics2DAdapter().paintImage(imageG2D.getGraphics2DImagePainter(), context, x, y, width, height);
+                drawGraphics2DImage(uri, (ImageGraphics2D) img, x, y, pos);
             } else if (img instanceof ImageRendered) {
-                ImageRendered imgRend = (ImageRendered) img;
                 AffineTransform at = new AffineTransform();
                 at.translate(x / 1000f, y / 1000f);
                 double sx = pos.getWidth() / info.getSize().getWidthMpt();
@@ -1095,7 +1669,7 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
                 sx *= userAgent.getSourceResolution() / info.getSize().getDpiHorizontal();
                 sy *= userAgent.getSourceResolution() / info.getSize().getDpiVertical();
                 at.scale(sx, sy);
-                drawRenderedImage(imgRend.getRenderedImage(), at);
+                drawRenderedImage(prepared.data, at);
             } else if (img instanceof ImageXMLDOM) {
                 ImageXMLDOM imgXML = (ImageXMLDOM) img;
                 renderDocument(imgXML.getDocument(), imgXML.getRootNamespace(), pos, foreignAttributes);
@@ -1115,6 +1689,16 @@ public class SWTRenderer extends AbstractPathOrientedRenderer implements Pageabl
         }
     }
 
+    //Draw the Graphics2D image, rasterised at the resolution of the target when it actually gets drawn, so that
+    //display lists replayed at a higher zoom do not get blurry.
+    private void drawGraphics2DImage(String uri, ImageGraphics2D image, int x, int y, Rectangle2D pos) {
+        float w = (float) pos.getWidth() / 1000f;
+        float h = (float) pos.getHeight() / 1000f;
+        state.configureGC(wrapper);
+        wrapper.drawRasterised((rx, ry) -> imagePrefetcher.getRaster(uri, image, w, h, rx, ry), x / 1000f, y / 1000f,
+                w, h);
+    }
+
     @Override
     protected RendererContext createRendererContext(int x, int y, int width, int height, Map foreignAttributes) {
         RendererContext context = super.createRendererContext(x, y, width, height, foreignAttributes);
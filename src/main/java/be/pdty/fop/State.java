@@ -66,11 +66,11 @@ public class State {
     }
 
     /**
-     * Configure the given GCWrapper according to the requested state.
+     * Configure the given drawing context according to the requested state.
      * 
-     * @param gc GCWrapper to configure.
+     * @param gc drawing context to configure.
      */
-    public void configureGC(GCWrapper gc) {
+    public void configureGC(DrawingContext gc) {
         gc.setColor(Convert.toRGBA(color));
 
         if (fontName != null) {
@@ -86,6 +86,35 @@ public class State {
         gc.setLineAttributes(Convert.toLineAttributes(stroke));
     }
 
+    /**
+     * Get the current transformation. The returned transformation must not be
+     * modified.
+     * 
+     * @return current transformation.
+     */
+    public AffineTransform getTransform() {
+        return transform;
+    }
+
+    /**
+     * Get the current clipping area, expressed in the current transformation.
+     * The returned area must not be modified.
+     * 
+     * @return current clipping area, or null.
+     */
+    public Area getClip() {
+        return clip;
+    }
+
+    /**
+     * Get the current foreground color.
+     * 
+     * @return current color, or null.
+     */
+    public Color getColor() {
+        return color;
+    }
+
     /**
      * Update the foreground color.
      * 
@@ -141,6 +170,8 @@ public class State {
         }
         try {
             if (clip != null) {
+                //The area may be shared with saved states.
+                clip = new Area(clip);
                 clip.transform(transform);
             }
             transform = new AffineTransform(transform);
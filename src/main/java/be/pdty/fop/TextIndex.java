@@ -0,0 +1,287 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Positional index of the text of a document, used to search the document and
+ * highlight the results without going through the area tree again. The text
+ * runs of all the pages are kept in one character buffer, with their page and
+ * bounds in parallel primitive arrays.
+ *
+ * Runs on the same line are searched as one continuous text, while different
+ * lines are separated by a space. Runs of the same line that are visibly apart
+ * (e.g. the words of justified text, which are drawn one at a time) are
+ * separated by a space as well. Matches never span several pages. The
+ * position of a match within a run is interpolated from the extent of the
+ * run, which is accurate enough for highlighting.
+ *
+ * This class is thread-safe.
+ */
+public class TextIndex {
+    private static final char LINE_SEPARATOR = ' ';
+    private static final char WORD_SEPARATOR = ' ';
+    //Minimum gap between two runs of the same line to consider them as different words, relative to their
+    //height. Spaces are at least a fifth of the font size, the height being a bit more than the font size.
+    private static final float WORD_GAP = 0.125f;
+    private static final char PAGE_SEPARATOR = '\0';
+
+    /**
+     * Collects the text runs of a page before adding them to the index.
+     */
+    public static class Builder {
+        private StringBuilder text;
+        private int[] starts;
+        private int[] lengths;
+        private float[] bounds;
+        private int count;
+
+        /**
+         * Create a new, empty, Builder.
+         */
+        public Builder() {
+            text = new StringBuilder();
+            starts = new int[16];
+            lengths = new int[16];
+            bounds = new float[64];
+        }
+
+        /**
+         * Add a text run, in drawing order.
+         * 
+         * @param s text.
+         * @param x x of the run, in page coordinates.
+         * @param y y of the top of the run.
+         * @param w width of the run.
+         * @param h height of the run.
+         */
+        public void add(String s, float x, float y, float w, float h) {
+            if (s.isEmpty())
+                return;
+            if (count > 0) {
+                float lastX = bounds[count * 4 - 4];
+                float lastY = bounds[count * 4 - 3];
+                float lastW = bounds[count * 4 - 2];
+                float lastH = bounds[count * 4 - 1];
+                //A run starting before the previous one or not vertically aligned starts a new line.
+                if (x < lastX || Math.abs((y + h / 2) - (lastY + lastH / 2)) > Math.max(h, lastH) / 2) {
+                    text.append(LINE_SEPARATOR);
+                } else if (x - (lastX + lastW) > Math.max(h, lastH) * WORD_GAP
+                        && !Character.isWhitespace(text.charAt(text.length() - 1))
+                        && !Character.isWhitespace(s.charAt(0))) {
+                    text.append(WORD_SEPARATOR);
+                }
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                bounds = Arrays.copyOf(bounds, count * 8);
+            }
+            starts[count] = text.length();
+            lengths[count] = s.length();
+            text.append(s);
+            bounds[count * 4] = x;
+            bounds[count * 4 + 1] = y;
+            bounds[count * 4 + 2] = w;
+            bounds[count * 4 + 3] = h;
+            count++;
+        }
+    }
+
+    /**
+     * A search result: the rectangles to highlight on a given page.
+     */
+    public static class Match {
+        /**
+         * 0-based page index.
+         */
+        public int page;
+
+        /**
+         * Rectangles, in page coordinates, as consecutive (x, y, w, h)
+         * values.
+         */
+        public float[] rectangles;
+    }
+
+    private StringBuilder text;
+    //Searchable copies of the text, built on first search.
+    private String content;
+    private String lowerCase;
+    private boolean[] indexed;
+    private int runs;
+    private int[] runStart;
+    private int[] runLength;
+    private int[] runPage;
+    private float[] runBounds;
+
+    /**
+     * Create a new, empty, TextIndex.
+     */
+    public TextIndex() {
+        text = new StringBuilder();
+        indexed = new boolean[16];
+        runStart = new int[256];
+        runLength = new int[256];
+        runPage = new int[256];
+        runBounds = new float[1024];
+    }
+
+    /**
+     * Check whether the given page was already indexed.
+     * 
+     * @param page 0-based page index.
+     * @return true if indexed, false otherwise.
+     */
+    public synchronized boolean contains(int page) {
+        return page < indexed.length && indexed[page];
+    }
+
+    /**
+     * Add the text runs of the given page. Nothing happens if the page was
+     * already indexed.
+     * 
+     * @param page 0-based page index.
+     * @param builder text runs of the page.
+     */
+    public synchronized void add(int page, Builder builder) {
+        if (contains(page))
+            return;
+        if (page >= indexed.length)
+            indexed = Arrays.copyOf(indexed, Math.max(page + 1, indexed.length * 2));
+        indexed[page] = true;
+
+        text.append(PAGE_SEPARATOR);
+        int offset = text.length();
+        text.append(builder.text);
+        content = null;
+        lowerCase = null;
+
+        int needed = runs + builder.count;
+        if (needed > runStart.length) {
+            int size = Math.max(needed, runStart.length * 2);
+            runStart = Arrays.copyOf(runStart, size);
+            runLength = Arrays.copyOf(runLength, size);
+            runPage = Arrays.copyOf(runPage, size);
+            runBounds = Arrays.copyOf(runBounds, size * 4);
+        }
+        for (int i = 0; i < builder.count; i++) {
+            runStart[runs] = offset + builder.starts[i];
+            runLength[runs] = builder.lengths[i];
+            runPage[runs] = page;
+            System.arraycopy(builder.bounds, i * 4, runBounds, runs * 4, 4);
+            runs++;
+        }
+    }
+
+    /**
+     * Get the number of indexed text runs.
+     * 
+     * @return number of runs.
+     */
+    public synchronized int size() {
+        return runs;
+    }
+
+    /**
+     * Search the given text in all the indexed pages.
+     * 
+     * @param query text to search.
+     * @param ignoreCase true for a case-insensitive search.
+     * @return matches, in page and drawing order.
+     */
+    public synchronized List<Match> search(String query, boolean ignoreCase) {
+        List<Match> ans = new ArrayList<>();
+        if (query.isEmpty())
+            return ans;
+
+        String haystack;
+        String needle;
+        if (ignoreCase) {
+            if (lowerCase == null)
+                lowerCase = toLowerCase(text);
+            haystack = lowerCase;
+            needle = toLowerCase(query);
+        } else {
+            if (content == null)
+                content = text.toString();
+            haystack = content;
+            needle = query;
+        }
+
+        int from = 0;
+        while (true) {
+            int start = haystack.indexOf(needle, from);
+            if (start < 0)
+                break;
+            Match match = toMatch(start, start + needle.length());
+            if (match != null)
+                ans.add(match);
+            //Matches don't overlap, as in a text editor.
+            from = start + needle.length();
+        }
+        ans.sort((a, b) -> Integer.compare(a.page, b.page));
+        return ans;
+    }
+
+    //Lower case, preserving the length of the text.
+    private static String toLowerCase(CharSequence s) {
+        char[] ans = new char[s.length()];
+        for (int i = 0; i < ans.length; i++) {
+            ans[i] = Character.toLowerCase(s.charAt(i));
+        }
+        return new String(ans);
+    }
+
+    //Build the rectangles covering the given range of the text buffer.
+    private Match toMatch(int start, int end) {
+        //Last run starting at or before the start of the range.
+        int first = Arrays.binarySearch(runStart, 0, runs, start);
+        if (first < 0)
+            first = Math.max(0, -first - 2);
+
+        Match ans = null;
+        float[] rectangles = new float[8];
+        int count = 0;
+        for (int i = first; i < runs && runStart[i] < end; i++) {
+            int from = Math.max(start, runStart[i]);
+            int to = Math.min(end, runStart[i] + runLength[i]);
+            if (from >= to)
+                continue;
+            if (ans == null) {
+                ans = new Match();
+                ans.page = runPage[i];
+            }
+            float x = runBounds[i * 4];
+            float w = runBounds[i * 4 + 2];
+            float charWidth = w / runLength[i];
+            if (count * 4 == rectangles.length)
+                rectangles = Arrays.copyOf(rectangles, rectangles.length * 2);
+            rectangles[count * 4] = x + (from - runStart[i]) * charWidth;
+            rectangles[count * 4 + 1] = runBounds[i * 4 + 1];
+            rectangles[count * 4 + 2] = (to - from) * charWidth;
+            rectangles[count * 4 + 3] = runBounds[i * 4 + 3];
+            count++;
+        }
+        if (ans != null)
+            ans.rectangles = Arrays.copyOf(rectangles, count * 4);
+        return ans;
+    }
+}
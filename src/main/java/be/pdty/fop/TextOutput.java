@@ -62,6 +62,22 @@ public class TextOutput {
         }
     }
 
+    /**
+     * Listener notified of every piece of text drawn, e.g. to index it.
+     */
+    public interface TextListener {
+        /**
+         * Called when a piece of text is drawn.
+         * 
+         * @param s text.
+         * @param x horizontal position.
+         * @param baseline baseline.
+         * @param extent extent of the text.
+         * @param metrics font metrics.
+         */
+        public void text(String s, float x, float baseline, float extent, GCWrapper.Metrics metrics);
+    }
+
     private static class Metrics {
         public float left;
         public float right;
@@ -71,7 +87,7 @@ public class TextOutput {
         public Shape shape;
     }
 
-    private GCWrapper gc;
+    private DrawingContext gc;
     private boolean def;
 
     private RGBA underline;
@@ -82,16 +98,32 @@ public class TextOutput {
     private List<Request> overlineRequests;
 
     private Geometry.UnderlineMethod underlineMethod;
+    private TextListener listener;
 
     /**
      * Create a new TextOutput.
      * 
-     * @param wrapper target GC wrapper.
+     * @param wrapper target drawing context.
      * @param deferred true if deferred mode should be used on the wrapper,
      *            false otherwise.
      * 
      */
-    public TextOutput(GCWrapper wrapper, boolean deferred) {
+    public TextOutput(DrawingContext wrapper, boolean deferred) {
+        this(wrapper, deferred, RenderQuality.NORMAL);
+    }
+
+    /**
+     * Create a new TextOutput with the given quality profile. Draft quality
+     * always uses straight underlines, print quality always uses the
+     * offset-mask skip-ink method, and normal quality honors the
+     * FOP_SWT_RENDER_UNDERLINE_METHOD environment variable.
+     * 
+     * @param wrapper target drawing context.
+     * @param deferred true if deferred mode should be used on the wrapper,
+     *            false otherwise.
+     * @param quality rendering quality.
+     */
+    public TextOutput(DrawingContext wrapper, boolean deferred, RenderQuality quality) {
         gc = wrapper;
         def = deferred;
         underlineRequests = new ArrayList<>();
@@ -99,7 +131,9 @@ public class TextOutput {
         overlineRequests = new ArrayList<>();
         underlineMethod = UnderlineMethod.OFFSET_MASK;
         String env = System.getenv("FOP_SWT_RENDER_UNDERLINE_METHOD"); //$NON-NLS-1$
-        if (env != null) {
+        if (quality == RenderQuality.DRAFT) {
+            underlineMethod = UnderlineMethod.STRAIGHT;
+        } else if (env != null && quality == RenderQuality.NORMAL) {
             try {
                 int val = Integer.parseInt(env);
                 switch (val) {
@@ -120,9 +154,18 @@ public class TextOutput {
         }
     }
 
+    /**
+     * Set the listener notified of every piece of text drawn.
+     * 
+     * @param textListener listener, or null for none.
+     */
+    public void setTextListener(TextListener textListener) {
+        listener = textListener;
+    }
+
     //We'll use AWT to get the text outline.
     private Shape getStringOutlineAtBaseline(String s, float x, float baseline, String fontName, int fontSize) {
-        FontInfo nfo = gc.getFontProvider().getFontInfo(fontName);
+        FontInfo nfo = gc.getFontInfo(fontName);
         int fontStyle = java.awt.Font.PLAIN;
         if ((nfo.style & SWT.ITALIC) != 0)
             fontStyle |= java.awt.Font.ITALIC;
@@ -206,11 +249,13 @@ public class TextOutput {
                 left, y + s / 2 };
 
         gc.setColor(color);
+        gc.setPass(RenderPass.DECORATION);
         if (def) {
             gc.fillPathDeferred(path);
         } else {
             gc.fillPath(path);
         }
+        gc.setPass(null);
     }
 
     private void closeUnderline() {
@@ -224,6 +269,7 @@ public class TextOutput {
             Rectangle2D u = new Rectangle2D.Float(m.left, m.under - m.strength / 2, m.right - m.left, m.strength);
             List<Shape> shape = Geometry.getUnderlineShapes(m.shape, u, underlineMethod);
             gc.setColor(underline);
+            gc.setPass(RenderPass.DECORATION);
             for (Shape s : shape) {
                 PathData data = Convert.toPathData(s);
                 if (def) {
@@ -232,6 +278,7 @@ public class TextOutput {
                     gc.fillPath(data);
                 }
             }
+            gc.setPass(null);
         }
 
         underlineRequests.clear();
@@ -283,6 +330,28 @@ public class TextOutput {
      */
     public void text(String s, float x, float baseline, String font, int fontSize, RGBA color, RGBA underlineColor,
             RGBA strikeColor, RGBA overlineColor) {
+        text(s, x, baseline, font, fontSize, color, underlineColor, strikeColor, overlineColor, Float.NaN);
+    }
+
+    /**
+     * Add some text to the current line, starting it if necessary. This
+     * variant accepts the extent of the text as already known by the caller
+     * (typically from FOP's font metrics) so that no native measurement is
+     * needed to position the decorations.
+     * 
+     * @param s text to add.
+     * @param x horizontal position.
+     * @param baseline baseline.
+     * @param font font name to use.
+     * @param fontSize font size.
+     * @param color text color.
+     * @param underlineColor decoration underline color, or null if none.
+     * @param strikeColor decoration strike color, or null if none.
+     * @param overlineColor decoration overline color, or null if none.
+     * @param knownExtent extent of the text, or NaN if it should be measured.
+     */
+    public void text(String s, float x, float baseline, String font, int fontSize, RGBA color, RGBA underlineColor,
+            RGBA strikeColor, RGBA overlineColor, float knownExtent) {
         //Close current segment if necessary.
         if (different(underlineColor, underline))
             closeUnderline();
@@ -298,12 +367,19 @@ public class TextOutput {
         //Draw the actual text.
         gc.setFont(font, fontSize);
         gc.setColor(color);
-        GCWrapper.Metrics metrics = gc.getFontMetrics();
-        gc.drawString(s, x, baseline - metrics.leading - metrics.ascent);
+        gc.drawStringAtBaseline(s, x, baseline);
+
+        if (listener != null) {
+            GCWrapper.Metrics metrics = gc.getFontMetrics();
+            if (Float.isNaN(knownExtent))
+                knownExtent = gc.stringExtentWidth(s);
+            listener.text(s, x, baseline, knownExtent, metrics);
+        }
 
         //Append decoration to current segment.
         if (underline != null || strike != null || overline != null) {
-            float extent = gc.stringExtentWidth(s);
+            GCWrapper.Metrics metrics = gc.getFontMetrics();
+            float extent = Float.isNaN(knownExtent) ? gc.stringExtentWidth(s) : knownExtent;
 
             Shape shape = null;
             if (underline != null && underlineMethod != UnderlineMethod.STRAIGHT) {
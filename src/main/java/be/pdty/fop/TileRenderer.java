@@ -0,0 +1,381 @@
+/*
+ * Copyright 2019 Philippe Detournay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package be.pdty.fop;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Device;
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.Transform;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Renders pages as fixed-size square tiles, so that deeply zoomed pages can be
+ * displayed without rendering them as a whole. Pages are recorded into display
+ * lists in the background (possibly several in parallel), and each tile only
+ * replays the operations intersecting its own area.
+ *
+ * Tiles are SWT images cached per page, zoom and tile index, in an LRU. Tile
+ * (0, 0) has its top-left corner at the top-left corner of the page. A zoom of
+ * 1 corresponds to the device resolution, i.e. the scale at which
+ * {@link Printable#print(GC)} would render on a GC without transformation.
+ *
+ * Tiles are always replayed from the display list of their page, so that each
+ * tile only costs its own content. {@link #getTile(int, float, int, int)}
+ * waits for the page to be recorded, while
+ * {@link #requestTile(int, float, int, int, TileListener)} lets the device
+ * thread go on and notifies the caller once the tile can be rendered. The
+ * replay itself draws on SWT images and must take place on the device thread.
+ *
+ * This class is meant to be used from the device thread only.
+ */
+public class TileRenderer {
+    private static final int MAX_PAGES = 16;
+
+    //Delay between two checks of the pending tile requests, in ms.
+    private static final int POLL_INTERVAL = 10;
+
+    /**
+     * Listener notified when a requested tile is ready to be rendered.
+     */
+    public interface TileListener {
+        /**
+         * Called on the device thread once the page of the given tile has
+         * been recorded, so that {@link TileRenderer#getTile(int, float, int, int)}
+         * returns without waiting.
+         *
+         * @param pageIndex 0-based page index.
+         * @param zoom zoom factor.
+         * @param tx tile column.
+         * @param ty tile row.
+         */
+        public void tileReady(int pageIndex, float zoom, int tx, int ty);
+    }
+
+    private static class TileKey {
+        private int page;
+        private float zoom;
+        private int tx;
+        private int ty;
+
+        public TileKey(int p, float z, int x, int y) {
+            page = p;
+            zoom = z;
+            tx = x;
+            ty = y;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((page * 31 + Float.floatToIntBits(zoom)) * 31 + tx) * 31 + ty;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TileKey))
+                return false;
+            TileKey o = (TileKey) obj;
+            return page == o.page && zoom == o.zoom && tx == o.tx && ty == o.ty;
+        }
+    }
+
+    private Device device;
+    private SWTRenderer renderer;
+    private Base14FontProvider fonts;
+    private ExecutorService executor;
+    private int tileSize;
+
+    private Map<Integer, Future<DisplayList>> pages;
+    private Map<TileKey, Image> tiles;
+    private Map<TileKey, TileListener> requests;
+    //Last tile that could not be cached, disposed with the next one.
+    private Image uncached;
+    private Runnable poll;
+
+    /**
+     * Create a new TileRenderer.
+     *
+     * @param targetDevice device on which the tiles are created.
+     * @param swtRenderer renderer holding the pages.
+     * @param fontProvider font provider used to record the pages. It must remain
+     *            undisposed as long as this tile renderer is used.
+     * @param executorService executor recording the pages.
+     * @param size tile width and height, in device pixels.
+     * @param maxTiles maximum number of cached tiles.
+     */
+    public TileRenderer(Device targetDevice, SWTRenderer swtRenderer, Base14FontProvider fontProvider,
+            ExecutorService executorService, int size, int maxTiles) {
+        device = targetDevice;
+        renderer = swtRenderer;
+        fonts = fontProvider;
+        executor = executorService;
+        tileSize = size;
+        pages = new LinkedHashMap<Integer, Future<DisplayList>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Future<DisplayList>> eldest) {
+                if (size() > MAX_PAGES) {
+                    eldest.getValue().cancel(true);
+                    return true;
+                }
+                return false;
+            }
+        };
+        tiles = new LinkedHashMap<TileKey, Image>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TileKey, Image> eldest) {
+                if (size() > maxTiles) {
+                    eldest.getValue().dispose();
+                    return true;
+                }
+                return false;
+            }
+        };
+        requests = new LinkedHashMap<>();
+        poll = this::poll;
+    }
+
+    /**
+     * Get the tile size.
+     *
+     * @return tile width and height, in device pixels.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Get the number of tile columns of the given page at the given zoom.
+     *
+     * @param pageIndex 0-based page index.
+     * @param zoom zoom factor.
+     * @return number of columns.
+     */
+    public int getColumns(int pageIndex, float zoom) {
+        double width = renderer.getPageFormat(pageIndex).getWidth() * zoom * device.getDPI().x / 72.0;
+        return (int) Math.ceil(width / tileSize);
+    }
+
+    /**
+     * Get the number of tile rows of the given page at the given zoom.
+     *
+     * @param pageIndex 0-based page index.
+     * @param zoom zoom factor.
+     * @return number of rows.
+     */
+    public int getRows(int pageIndex, float zoom) {
+        double height = renderer.getPageFormat(pageIndex).getHeight() * zoom * device.getDPI().y / 72.0;
+        return (int) Math.ceil(height / tileSize);
+    }
+
+    /**
+     * Start recording the given page in the background, if not already done.
+     *
+     * @param pageIndex 0-based page index.
+     */
+    public void prepare(int pageIndex) {
+        if (!pages.containsKey(pageIndex)) {
+            pages.put(pageIndex, renderer.preparePage(pageIndex, fonts, executor));
+        }
+    }
+
+    /**
+     * Get the given tile if it is cached or if its page has been recorded, or
+     * start recording the page and return null. In the latter case, the given
+     * listener is notified once the tile can be rendered. The returned image
+     * belongs to this tile renderer, see
+     * {@link #getTile(int, float, int, int)}.
+     *
+     * On devices other than a display, there is no event loop to be notified
+     * from: the page is waited for right away.
+     *
+     * @param pageIndex 0-based page index.
+     * @param zoom zoom factor.
+     * @param tx tile column.
+     * @param ty tile row.
+     * @param listener listener notified when the tile is ready.
+     * @return tile image, or null if the page is not recorded yet.
+     */
+    public Image requestTile(int pageIndex, float zoom, int tx, int ty, TileListener listener) {
+        TileKey key = new TileKey(pageIndex, zoom, tx, ty);
+        Image ans = tiles.get(key);
+        if (ans != null)
+            return ans;
+
+        prepare(pageIndex);
+        if (!(device instanceof Display) || pages.get(pageIndex).isDone())
+            return getTile(pageIndex, zoom, tx, ty);
+
+        if (requests.isEmpty())
+            ((Display) device).timerExec(POLL_INTERVAL, poll);
+        requests.put(key, listener);
+        return null;
+    }
+
+    //Notify the requests whose page has been recorded, and check again later for the others.
+    private void poll() {
+        if (requests.isEmpty() || device.isDisposed())
+            return;
+
+        List<Map.Entry<TileKey, TileListener>> ready = new ArrayList<>();
+        Iterator<Map.Entry<TileKey, TileListener>> it = requests.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<TileKey, TileListener> entry = it.next();
+            int pageIndex = entry.getKey().page;
+            //The recording may have been evicted by other pages in the meantime.
+            prepare(pageIndex);
+            if (pages.get(pageIndex).isDone()) {
+                ready.add(entry);
+                it.remove();
+            }
+        }
+        if (!requests.isEmpty())
+            ((Display) device).timerExec(POLL_INTERVAL, poll);
+
+        for (Map.Entry<TileKey, TileListener> entry : ready) {
+            TileKey key = entry.getKey();
+            entry.getValue().tileReady(key.page, key.zoom, key.tx, key.ty);
+        }
+    }
+
+    /**
+     * Get the given tile, rendering it if necessary. If the page has not been
+     * recorded yet, this waits for its recording. The returned image belongs
+     * to this tile renderer and must not be disposed by the caller; it remains
+     * valid until this tile renderer is disposed or until the next call to
+     * this method.
+     *
+     * @param pageIndex 0-based page index.
+     * @param zoom zoom factor.
+     * @param tx tile column.
+     * @param ty tile row.
+     * @return tile image.
+     */
+    public Image getTile(int pageIndex, float zoom, int tx, int ty) {
+        TileKey key = new TileKey(pageIndex, zoom, tx, ty);
+        Image ans = tiles.get(key);
+        if (ans != null)
+            return ans;
+
+        DisplayList list = getDisplayList(pageIndex);
+        ans = new Image(device, tileSize, tileSize);
+        GC gc = new GC(ans);
+        Transform transform = new Transform(device);
+        try {
+            gc.setBackground(device.getSystemColor(SWT.COLOR_WHITE));
+            gc.fillRectangle(0, 0, tileSize, tileSize);
+
+            transform.translate(-tx * tileSize, -ty * tileSize);
+            transform.scale(zoom, zoom);
+            gc.setTransform(transform);
+
+            if (list == null) {
+                //The page could not be recorded: render it as a whole, once, without caching the result.
+                renderer.getPrintable(pageIndex).print(gc);
+            } else {
+                //Area of the tile, in page coordinates.
+                float sx = zoom * device.getDPI().x / 72.0f;
+                float sy = zoom * device.getDPI().y / 72.0f;
+                GCWrapper wrapper = new GCWrapper(gc);
+                try {
+                    list.replay(wrapper, tx * tileSize / sx, ty * tileSize / sy, tileSize / sx, tileSize / sy);
+                } finally {
+                    wrapper.dispose();
+                }
+            }
+        } finally {
+            transform.dispose();
+            gc.dispose();
+        }
+        if (list != null) {
+            tiles.put(key, ans);
+        } else {
+            //Not cached, but still valid until the next call.
+            if (uncached != null)
+                uncached.dispose();
+            uncached = ans;
+        }
+        return ans;
+    }
+
+    //Get the display list of the given page, waiting for it to be recorded, or null if it could not be.
+    private DisplayList getDisplayList(int pageIndex) {
+        prepare(pageIndex);
+        Future<DisplayList> future = pages.get(pageIndex);
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | CancellationException ex) {
+            //Let's try again next time.
+            pages.remove(pageIndex);
+            return null;
+        }
+    }
+
+    /**
+     * Dispose all cached tiles of the given page, for example when the page
+     * content changed.
+     *
+     * @param pageIndex 0-based page index.
+     */
+    public void invalidate(int pageIndex) {
+        tiles.entrySet().removeIf(e -> {
+            if (e.getKey().page != pageIndex)
+                return false;
+            e.getValue().dispose();
+            return true;
+        });
+        requests.keySet().removeIf(k -> k.page == pageIndex);
+        Future<DisplayList> future = pages.remove(pageIndex);
+        if (future != null)
+            future.cancel(true);
+    }
+
+    /**
+     * Dispose all cached tiles and cancel pending recordings.
+     */
+    public void dispose() {
+        for (Image image : tiles.values()) {
+            image.dispose();
+        }
+        tiles.clear();
+        if (uncached != null) {
+            uncached.dispose();
+            uncached = null;
+        }
+        requests.clear();
+        for (Future<DisplayList> future : pages.values()) {
+            future.cancel(true);
+        }
+        pages.clear();
+    }
+}
@@ -0,0 +1,263 @@
+package be.pdty.fop;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.LineAttributes;
+import org.eclipse.swt.graphics.PathData;
+import org.eclipse.swt.graphics.RGBA;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class BackgroundBatcherTest {
+    private static final RGBA RED = new RGBA(255, 0, 0, 255);
+    private static final RGBA BLUE = new RGBA(0, 0, 255, 255);
+    private static final RGBA BLACK = new RGBA(0, 0, 0, 255);
+
+    //Records the drawing operations, and keeps track of the state.
+    private static class Recorder implements DrawingContext {
+        private List<String> operations = new ArrayList<>();
+        private float[] transform;
+        private RGBA color;
+        private String fontName;
+        private int fontSize;
+        private PathData clip;
+        private LineAttributes lineAttributes;
+        private RenderPass pass;
+
+        private String name(RGBA c) {
+            return c == RED ? "red" : c == BLUE ? "blue" : c == BLACK ? "black" : String.valueOf(c);
+        }
+
+        @Override
+        public void setTransform(float[] transformValues) {
+            transform = transformValues;
+        }
+
+        @Override
+        public void setColor(RGBA rgba) {
+            color = rgba;
+        }
+
+        @Override
+        public void setFont(String name, int size) {
+            fontName = name;
+            fontSize = size;
+        }
+
+        @Override
+        public void setClipping(PathData data) {
+            clip = data;
+        }
+
+        @Override
+        public void setLineAttributes(LineAttributes attributes) {
+            lineAttributes = attributes;
+        }
+
+        @Override
+        public void setPass(RenderPass renderPass) {
+            pass = renderPass;
+        }
+
+        @Override
+        public void fillRectangle(float x, float y, float w, float h) {
+            operations.add("fillRectangle " + name(color));
+        }
+
+        @Override
+        public void drawRectangle(float x, float y, float w, float h) {
+            operations.add("drawRectangle " + name(color));
+        }
+
+        @Override
+        public void drawLine(float x1, float y1, float x2, float y2) {
+            operations.add("drawLine " + name(color));
+        }
+
+        @Override
+        public void drawString(String s, float x, float y) {
+            operations.add("drawString " + s);
+        }
+
+        @Override
+        public void drawStringAtBaseline(String s, float x, float baseline) {
+            operations.add("drawString " + s);
+        }
+
+        @Override
+        public GCWrapper.Metrics getFontMetrics() {
+            return new GCWrapper.Metrics(0, 8, 2, 10);
+        }
+
+        @Override
+        public float stringExtentWidth(String s) {
+            return s.length() * 5;
+        }
+
+        @Override
+        public Base14FontProvider.FontInfo getFontInfo(String name) {
+            return null;
+        }
+
+        @Override
+        public float getResolution() {
+            return 1;
+        }
+
+        @Override
+        public void drawImage(ImageData data, float x, float y) {
+            operations.add("drawImage");
+        }
+
+        @Override
+        public void drawRasterised(Rasteriser rasteriser, float x, float y, float w, float h) {
+            operations.add("drawRasterised");
+        }
+
+        @Override
+        public void fillPattern(ImageData data, float x, float y, float w, float h, float tileX, float tileY,
+                float tileW, float tileH) {
+            operations.add("fillPattern");
+        }
+
+        @Override
+        public void fillPath(PathData data) {
+            int count = 0;
+            for (byte type : data.types) {
+                if (type == SWT.PATH_MOVE_TO)
+                    count++;
+            }
+            operations.add("fillPath " + name(color) + " " + count);
+        }
+
+        @Override
+        public void fillPathDeferred(PathData data) {
+            operations.add("fillPathDeferred " + name(color));
+        }
+
+        @Override
+        public void commitDeferred() {
+            operations.add("commitDeferred");
+        }
+    }
+
+    @Test
+    public void testStripesMerged() {
+        Recorder recorder = new Recorder();
+        BackgroundBatcher batcher = new BackgroundBatcher(recorder);
+        batcher.setFont("Helvetica", 10000);
+        //Striped rows, each drawing its text right after its background, and leaving a gap with the next one.
+        for (int row = 0; row < 6; row++) {
+            batcher.fillBackground(row % 2 == 0 ? RED : BLUE, null, 0, row * 20, 100, 15);
+            batcher.setColor(BLACK);
+            batcher.drawString("row" + row, 5, row * 20);
+        }
+        assertEquals(0, recorder.operations.size());
+        batcher.flush();
+        assertEquals(Arrays.asList("fillPath red 3", "fillPath blue 3", "drawString row0", "drawString row1",
+                "drawString row2", "drawString row3", "drawString row4", "drawString row5"),
+                recorder.operations);
+    }
+
+    @Test
+    public void testOverlappingHeldText() {
+        Recorder recorder = new Recorder();
+        BackgroundBatcher batcher = new BackgroundBatcher(recorder);
+        batcher.setFont("Helvetica", 10000);
+        batcher.fillBackground(RED, null, 0, 0, 100, 10);
+        batcher.setColor(BLACK);
+        batcher.drawString("text", 5, 0);
+        //The text is drawn before the background that covers it.
+        batcher.fillBackground(RED, null, 0, 5, 100, 10);
+        assertEquals(Arrays.asList("fillPath red 1", "drawString text"), recorder.operations);
+        batcher.flush();
+        assertEquals(Arrays.asList("fillPath red 1", "drawString text", "fillPath red 1"), recorder.operations);
+    }
+
+    @Test
+    public void testOverlappingOtherColor() {
+        Recorder recorder = new Recorder();
+        BackgroundBatcher batcher = new BackgroundBatcher(recorder);
+        batcher.fillBackground(RED, null, 0, 0, 50, 50);
+        batcher.fillBackground(BLUE, null, 60, 0, 50, 50);
+        //Merged with the first red one, it would end up below the blue one.
+        batcher.fillBackground(RED, null, 80, 0, 50, 50);
+        batcher.fillBackground(BLUE, null, 0, 60, 50, 50);
+        batcher.flush();
+        assertEquals(Arrays.asList("fillPath red 1", "fillPath blue 1", "fillPath red 1", "fillPath blue 1"),
+                recorder.operations);
+    }
+
+    @Test
+    public void testBoundedWindow() {
+        Recorder recorder = new Recorder();
+        BackgroundBatcher batcher = new BackgroundBatcher(recorder);
+        batcher.setFont("Helvetica", 10000);
+        //A long table: the backgrounds are sent in a few batches rather than all at the end.
+        for (int row = 0; row < 600; row++) {
+            batcher.fillBackground(RED, null, 0, row * 20, 100, 15);
+            batcher.drawString("row" + row, 5, row * 20);
+        }
+        batcher.flush();
+        assertEquals(600 + 3, recorder.operations.size());
+        assertEquals("fillPath red 256", recorder.operations.get(0));
+        assertEquals("drawString row0", recorder.operations.get(1));
+        assertEquals("fillPath red 256", recorder.operations.get(257));
+        assertEquals("fillPath red 88", recorder.operations.get(514));
+    }
+
+    @Test
+    public void testStateAfterFlush() {
+        float[] transform1 = new float[] { 1, 0, 0, 1, 10, 10 };
+        float[] transform2 = new float[] { 2, 0, 0, 2, 0, 0 };
+        LineAttributes line = new LineAttributes(2);
+        PathData clip = new PathData();
+        clip.types = new byte[] { SWT.PATH_MOVE_TO, SWT.PATH_LINE_TO, SWT.PATH_LINE_TO, SWT.PATH_CLOSE };
+        clip.points = new float[] { 0, 0, 10, 0, 10, 10 };
+
+        Recorder recorder = new Recorder();
+        BackgroundBatcher batcher = new BackgroundBatcher(recorder);
+        batcher.setTransform(transform1);
+        batcher.setColor(BLACK);
+        batcher.setFont("Helvetica", 10000);
+        batcher.setLineAttributes(line);
+        batcher.setPass(RenderPass.TEXT);
+
+        //Only backgrounds: the state is restored once they are drawn.
+        batcher.fillBackground(RED, null, 0, 0, 100, 10);
+        batcher.flush();
+        assertArrayEquals(transform1, recorder.transform, 0);
+        assertSame(BLACK, recorder.color);
+        assertEquals("Helvetica", recorder.fontName);
+        assertEquals(10000, recorder.fontSize);
+        assertSame(line, recorder.lineAttributes);
+        assertEquals(null, recorder.clip);
+        assertSame(RenderPass.TEXT, recorder.pass);
+
+        //State changed while operations were held.
+        batcher.fillBackground(BLUE, null, 0, 0, 100, 10);
+        batcher.setClipping(clip);
+        batcher.setTransform(transform2);
+        batcher.setColor(RED);
+        batcher.setFont("Courier", 12000);
+        batcher.setPass(null);
+        batcher.drawString("text", 0, 20);
+        batcher.flush();
+        assertEquals(Arrays.asList("fillPath red 1", "fillPath blue 1", "drawString text"), recorder.operations);
+        assertArrayEquals(transform2, recorder.transform, 0);
+        assertSame(RED, recorder.color);
+        assertEquals("Courier", recorder.fontName);
+        assertEquals(12000, recorder.fontSize);
+        assertSame(line, recorder.lineAttributes);
+        assertArrayEquals(clip.points, recorder.clip.points, 0);
+        assertEquals(null, recorder.pass);
+    }
+}
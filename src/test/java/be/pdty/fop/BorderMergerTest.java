@@ -0,0 +1,123 @@
+package be.pdty.fop;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.swt.graphics.PathData;
+import org.eclipse.swt.graphics.RGBA;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class BorderMergerTest {
+    private static final RGBA BLACK = new RGBA(0, 0, 0, 255);
+    private static final RGBA RED = new RGBA(255, 0, 0, 255);
+
+    @Test
+    public void testMergeRuns() {
+        float[] rects = {
+                //Two touching and one overlapping horizontal segments.
+                0, 0, 10, 1,
+                10, 0, 10, 1,
+                15, 0, 10, 1,
+                //Same line, but not touching.
+                30, 0, 10, 1,
+                //Same line, different width.
+                0, 10, 10, 2,
+                10, 10, 10, 1,
+                //Vertical segments.
+                0, 0, 1, 10,
+                0, 10, 1, 10 };
+        float[] merged = BorderMerger.merge(rects, 8);
+        assertArrayEquals(new float[] {
+                0, 0, 1, 20,
+                0, 10, 10, 2,
+                0, 0, 25, 1,
+                10, 10, 10, 1,
+                30, 0, 10, 1 }, merged, 0.0001f);
+    }
+
+    @Test
+    public void testMergeBlocks() {
+        //A 3x2 block of cells, and a column of two cells below it.
+        float[] rects = {
+                0, 0, 10, 5,
+                10, 0, 10, 5,
+                20, 0, 10, 5,
+                0, 5, 10, 5,
+                10, 5, 10, 5,
+                20, 5, 10, 5,
+                0, 10, 10, 5,
+                0, 15, 10, 5 };
+        float[] merged = BorderMerger.merge(rects, 8);
+        assertArrayEquals(new float[] {
+                0, 10, 10, 10,
+                0, 0, 30, 10 }, merged, 0.0001f);
+    }
+
+    @Test
+    public void testOverlaps() {
+        BorderMerger merger = new BorderMerger();
+        merger.add(BLACK, null, 0, 0, 10, 10);
+        merger.add(RED, null, 10, 0, 10, 10);
+
+        //Touching is fine, and so is overlapping the same color.
+        assertEquals(false, merger.overlaps(RED, null, 20, 0, 10, 10));
+        assertEquals(false, merger.overlaps(BLACK, null, 2, 2, 5, 5));
+        assertEquals(true, merger.overlaps(RED, null, 5, 5, 10, 10));
+        assertEquals(true, merger.overlaps(BLACK, null, 15, 5, 1, 1));
+    }
+
+    @Test
+    public void testGrid() {
+        BorderMerger merger = new BorderMerger();
+        //A 4x3 grid of 10x10 cells, each drawing its own four sides.
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 4; col++) {
+                float x = col * 10;
+                float y = row * 10;
+                merger.add(BLACK, null, x - 0.5f, y - 0.5f, 11, 1);
+                merger.add(BLACK, null, x - 0.5f, y + 9.5f, 11, 1);
+                merger.add(BLACK, null, x - 0.5f, y - 0.5f, 1, 11);
+                merger.add(BLACK, null, x + 9.5f, y - 0.5f, 1, 11);
+            }
+        }
+        merger.add(RED, null, 0, 50, 10, 1);
+
+        List<RGBA> colors = new ArrayList<>();
+        List<PathData> paths = new ArrayList<>();
+        merger.flush((color, clip, path) -> {
+            colors.add(color);
+            paths.add(path);
+        });
+        assertEquals(2, paths.size());
+        assertEquals(BLACK, colors.get(0));
+        //4 horizontal and 5 vertical lines.
+        assertEquals(9 * 5, paths.get(0).types.length);
+        assertEquals(1 * 5, paths.get(1).types.length);
+        assertEquals(true, merger.isEmpty());
+    }
+
+    @Test
+    public void testClipsComparedByContent() {
+        BorderMerger merger = new BorderMerger();
+        PathData clip1 = new PathData();
+        clip1.types = new byte[] { 1, 2, 2, 2, 4 };
+        clip1.points = new float[] { 0, 0, 5, 0, 5, 5, 0, 5 };
+        PathData clip2 = new PathData();
+        clip2.types = clip1.types.clone();
+        clip2.points = clip1.points.clone();
+
+        merger.add(BLACK, clip1, 0, 0, 10, 1);
+        merger.add(BLACK, null, 0, 0, 10, 1);
+        merger.add(BLACK, clip2, 10, 0, 10, 1);
+
+        List<PathData> paths = new ArrayList<>();
+        merger.flush((color, clip, path) -> paths.add(path));
+        assertEquals(2, paths.size());
+        assertEquals(5, paths.get(0).types.length);
+        assertArrayEquals(new float[] { 0, 0, 20, 0, 20, 1, 0, 1 }, paths.get(0).points, 0.0001f);
+    }
+}
@@ -0,0 +1,46 @@
+package be.pdty.fop;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.eclipse.swt.graphics.PathData;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class DashGeometryTest {
+    @Test
+    public void testHorizontal() {
+        //Dots of 1, gaps of 2: dashes at 0, 3, 6 and 9, the last one cut at 10.
+        PathData path = DashGeometry.createDashes(1, 2, 1, 0, 5, 10, 5);
+        assertEquals(4 * 5, path.types.length);
+        assertArrayEquals(new float[] { 0, 4.5f, 1, 4.5f, 1, 5.5f, 0, 5.5f }, slice(path, 0), 0.0001f);
+        assertArrayEquals(new float[] { 9, 4.5f, 10, 4.5f, 10, 5.5f, 9, 5.5f }, slice(path, 3), 0.0001f);
+
+        path = DashGeometry.createDashes(1, 2, 1, 0, 0, 9.5f, 0);
+        assertArrayEquals(new float[] { 9, -0.5f, 9.5f, -0.5f, 9.5f, 0.5f, 9, 0.5f }, slice(path, 3), 0.0001f);
+    }
+
+    @Test
+    public void testVerticalAndReversed() {
+        PathData path = DashGeometry.createDashes(4, 4, 2, 10, 0, 10, 12);
+        assertEquals(2 * 5, path.types.length);
+        assertArrayEquals(new float[] { 11, 0, 11, 4, 9, 4, 9, 0 }, slice(path, 0), 0.0001f);
+        assertArrayEquals(new float[] { 11, 8, 11, 12, 9, 12, 9, 8 }, slice(path, 1), 0.0001f);
+
+        path = DashGeometry.createDashes(4, 4, 2, 12, 0, 0, 0);
+        assertArrayEquals(new float[] { 12, 1, 8, 1, 8, -1, 12, -1 }, slice(path, 0), 0.0001f);
+    }
+
+    @Test
+    public void testEmpty() {
+        assertNull(DashGeometry.createDashes(1, 2, 1, 5, 5, 5, 5));
+        assertNull(DashGeometry.createDashes(1, 2, 0, 0, 0, 10, 0));
+    }
+
+    private static float[] slice(PathData path, int dash) {
+        float[] ans = new float[8];
+        System.arraycopy(path.points, dash * 8, ans, 0, 8);
+        return ans;
+    }
+}
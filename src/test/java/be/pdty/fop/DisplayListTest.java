@@ -0,0 +1,138 @@
+package be.pdty.fop;
+
+import static org.junit.Assert.assertEquals;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.PathData;
+import org.eclipse.swt.graphics.RGBA;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class DisplayListTest {
+    private static final RGBA RED = new RGBA(255, 0, 0, 255);
+    private static final RGBA BLUE = new RGBA(0, 0, 255, 255);
+    private static final RGBA GLASS = new RGBA(0, 0, 255, 128);
+
+    private static PathData rectangles(float... r) {
+        PathData ans = new PathData();
+        ans.points = new float[r.length * 2];
+        ans.types = new byte[r.length / 4 * 5];
+        for (int i = 0; i < r.length / 4; i++) {
+            float x = r[i * 4];
+            float y = r[i * 4 + 1];
+            float w = r[i * 4 + 2];
+            float h = r[i * 4 + 3];
+            System.arraycopy(new float[] { x, y, x + w, y, x + w, y + h, x, y + h }, 0, ans.points, i * 8, 8);
+            System.arraycopy(new byte[] { SWT.PATH_MOVE_TO, SWT.PATH_LINE_TO, SWT.PATH_LINE_TO, SWT.PATH_LINE_TO,
+                    SWT.PATH_CLOSE }, 0, ans.types, i * 5, 5);
+        }
+        return ans;
+    }
+
+    @Test
+    public void testCoveredFillDropped() {
+        DisplayList list = new DisplayList(null, null);
+        list.setColor(RED);
+        list.fillRectangle(10, 10, 20, 20);
+        list.setColor(BLUE);
+        list.fillPath(rectangles(0, 0, 40, 20, 0, 20, 40, 20));
+        assertEquals(4, list.size());
+        assertEquals(0, list.cullOccluded());
+
+        //The union of the rectangles does not count, a single one must cover the fill.
+        list = new DisplayList(null, null);
+        list.setColor(RED);
+        list.fillRectangle(10, 10, 20, 5);
+        list.setColor(BLUE);
+        list.fillPath(rectangles(0, 0, 40, 20, 0, 20, 40, 20));
+        assertEquals(1, list.cullOccluded());
+        assertEquals(3, list.size());
+    }
+
+    @Test
+    public void testTransform() {
+        DisplayList list = new DisplayList(null, null);
+        list.setColor(RED);
+        list.setTransform(new float[] { 2, 0, 0, 2, 100, 100 });
+        list.fillRectangle(0, 0, 10, 10);
+        list.setTransform(null);
+        list.setColor(BLUE);
+        list.fillRectangle(100, 100, 20, 20);
+        assertEquals(1, list.cullOccluded());
+
+        //Rotated content does not occlude anything.
+        list = new DisplayList(null, null);
+        list.setColor(RED);
+        list.fillRectangle(0, 0, 10, 10);
+        list.setTransform(new float[] { 0, 1, -1, 0, 0, 0 });
+        list.setColor(BLUE);
+        list.fillRectangle(-50, -50, 100, 100);
+        assertEquals(0, list.cullOccluded());
+    }
+
+    @Test
+    public void testTranslucentAndClipped() {
+        DisplayList list = new DisplayList(null, null);
+        list.setColor(RED);
+        list.fillRectangle(10, 10, 20, 20);
+        list.setColor(GLASS);
+        list.fillRectangle(0, 0, 50, 50);
+        assertEquals(0, list.cullOccluded());
+
+        //The occluder must use the same clipping area, or none.
+        list = new DisplayList(null, null);
+        list.setColor(RED);
+        list.setClipping(rectangles(0, 0, 15, 15));
+        list.fillRectangle(10, 10, 20, 20);
+        list.setClipping(rectangles(0, 0, 15, 15));
+        list.setColor(BLUE);
+        list.fillRectangle(0, 0, 50, 50);
+        assertEquals(0, list.cullOccluded());
+
+        list = new DisplayList(null, null);
+        list.setColor(RED);
+        list.setClipping(rectangles(0, 0, 15, 15));
+        list.fillRectangle(10, 10, 20, 20);
+        list.fillRectangle(20, 20, 5, 5);
+        list.setClipping(null);
+        list.setColor(BLUE);
+        list.fillRectangle(0, 0, 50, 50);
+        assertEquals(2, list.cullOccluded());
+    }
+
+    @Test
+    public void testImagesAndDeferred() {
+        ImageData opaque = new ImageData(40, 40, 24, new PaletteData(0xff0000, 0xff00, 0xff));
+        ImageData transparent = new ImageData(40, 40, 24, new PaletteData(0xff0000, 0xff00, 0xff));
+        transparent.alpha = 128;
+
+        DisplayList list = new DisplayList(null, null);
+        list.setColor(RED);
+        list.fillRectangle(10, 10, 20, 20);
+        list.fillPathDeferred(rectangles(10, 10, 20, 20));
+        list.drawImage(transparent, 0, 0);
+        list.drawImage(opaque, 0, 0);
+        //The transparent image and the fill are hidden, the deferred fill is drawn above anyway.
+        assertEquals(2, list.cullOccluded());
+        assertEquals(3, list.size());
+    }
+
+    @Test
+    public void testRasterisedAtReplay() {
+        int[] calls = new int[1];
+        DisplayList list = new DisplayList(null, null);
+        list.drawRasterised((rx, ry) -> {
+            calls[0]++;
+            return null;
+        }, 10, 10, 20, 20);
+        list.setPass(RenderPass.DECORATION);
+        list.setColor(RED);
+        list.fillRectangle(0, 0, 50, 50);
+        //Nothing is rasterised before the target resolution is known, and hidden content never is.
+        assertEquals(0, calls[0]);
+        assertEquals(1, list.cullOccluded());
+        assertEquals(2, list.size());
+    }
+}
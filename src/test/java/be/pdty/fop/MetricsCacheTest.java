@@ -0,0 +1,24 @@
+package be.pdty.fop;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class MetricsCacheTest {
+    @Test
+    public void testAdditive() {
+        assertEquals(true, MetricsCache.isAdditive("Hello, world!"));
+        assertEquals(true, MetricsCache.isAdditive("café Γειά Привет"));
+        assertEquals(true, MetricsCache.isAdditive("日本語 ひらがな 한국어"));
+
+        //Combining marks, joiners and shaped scripts.
+        assertEquals(false, MetricsCache.isAdditive("café"));
+        assertEquals(false, MetricsCache.isAdditive("a‍b"));
+        assertEquals(false, MetricsCache.isAdditive("مرحبا"));
+        assertEquals(false, MetricsCache.isAdditive("नमस्ते"));
+        assertEquals(false, MetricsCache.isAdditive("สวัสดี"));
+        assertEquals(false, MetricsCache.isAdditive("가"));
+        assertEquals(false, MetricsCache.isAdditive("😀"));
+    }
+}
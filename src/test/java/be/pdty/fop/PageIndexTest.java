@@ -0,0 +1,65 @@
+package be.pdty.fop;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class PageIndexTest {
+    @Test
+    public void testPointQuery() {
+        PageIndex index = new PageIndex();
+        index.add(PageIndex.BLOCK, 0, 0, 500, 800, null);
+        index.add(PageIndex.TEXT, 10, 10, 100, 12, "Hello");
+        index.add(PageIndex.LINK, 50, 8, 40, 16, "target");
+        index.add(PageIndex.IMAGE, 200, 300, 100, 100, "image.png");
+
+        assertArrayEquals(new int[] { 0, 1, 2 }, index.query(60, 15, PageIndex.ALL));
+        assertArrayEquals(new int[] { 1 }, index.query(20, 15, PageIndex.TEXT | PageIndex.LINK));
+        assertArrayEquals(new int[] { 2 }, index.query(60, 15, PageIndex.LINK));
+        assertArrayEquals(new int[] { 3 }, index.query(250, 350, PageIndex.IMAGE));
+        assertArrayEquals(new int[0], index.query(250, 350, PageIndex.TEXT));
+        assertArrayEquals(new int[0], index.query(600, 350, PageIndex.ALL));
+        assertEquals("target", index.getPayload(2));
+        assertEquals(40, index.getWidth(2), 0);
+    }
+
+    @Test
+    public void testRectangleQueryAgainstBruteForce() {
+        Random random = new Random(42);
+        PageIndex index = new PageIndex();
+        float[][] items = new float[2000][];
+        for (int i = 0; i < items.length; i++) {
+            float x = random.nextFloat() * 600;
+            float y = random.nextFloat() * 800;
+            float w = random.nextFloat() * (i % 10 == 0 ? 300 : 30);
+            float h = random.nextFloat() * 20;
+            items[i] = new float[] { x, y, w, h };
+            index.add(1 << (i % 4), x, y, w, h, null);
+        }
+
+        for (int q = 0; q < 200; q++) {
+            float x = random.nextFloat() * 700 - 50;
+            float y = random.nextFloat() * 900 - 50;
+            float w = random.nextFloat() * 100;
+            float h = random.nextFloat() * 100;
+            int mask = 1 + random.nextInt(PageIndex.ALL);
+
+            int expected = 0;
+            for (int i = 0; i < items.length; i++) {
+                float[] it = items[i];
+                if (((1 << (i % 4)) & mask) != 0 && it[0] <= x + w && it[1] <= y + h && it[0] + it[2] >= x
+                        && it[1] + it[3] >= y)
+                    expected++;
+            }
+            int[] found = index.query(x, y, w, h, mask);
+            assertEquals(expected, found.length);
+            for (int i = 1; i < found.length; i++) {
+                assertEquals(true, found[i - 1] < found[i]);
+            }
+        }
+    }
+}
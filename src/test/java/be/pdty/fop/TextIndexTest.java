@@ -0,0 +1,110 @@
+package be.pdty.fop;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class TextIndexTest {
+    private static TextIndex createIndex() {
+        TextIndex index = new TextIndex();
+
+        TextIndex.Builder page0 = new TextIndex.Builder();
+        page0.add("Hello ", 10, 10, 60, 12);
+        page0.add("World", 70, 10, 50, 12);
+        page0.add("second line", 10, 30, 110, 12);
+        index.add(0, page0);
+
+        TextIndex.Builder page1 = new TextIndex.Builder();
+        page1.add("hello again", 20, 20, 110, 12);
+        index.add(1, page1);
+
+        return index;
+    }
+
+    @Test
+    public void testSearchWithinRun() {
+        List<TextIndex.Match> matches = createIndex().search("second", false);
+        assertEquals(1, matches.size());
+        assertEquals(0, matches.get(0).page);
+        assertArrayEquals(new float[] { 10, 30, 60, 12 }, matches.get(0).rectangles, 0.001f);
+    }
+
+    @Test
+    public void testSearchAcrossRuns() {
+        List<TextIndex.Match> matches = createIndex().search("lo Wor", false);
+        assertEquals(1, matches.size());
+        assertArrayEquals(new float[] { 40, 10, 30, 12, 70, 10, 30, 12 }, matches.get(0).rectangles, 0.001f);
+
+        //Lines are separated by a space.
+        matches = createIndex().search("World second", false);
+        assertEquals(1, matches.size());
+        assertEquals(8, matches.get(0).rectangles.length);
+    }
+
+    @Test
+    public void testAdjustedSpacing() {
+        //Justified text is drawn one word at a time, the spaces only moving the pen.
+        TextIndex index = new TextIndex();
+        TextIndex.Builder page = new TextIndex.Builder();
+        page.add("hello", 10, 10, 30, 12);
+        page.add("world", 52, 10, 30, 12);
+        //Letter spacing adjustments only leave small gaps.
+        page.add("sp", 90, 10, 12, 12);
+        page.add("aced", 102.5f, 10, 24, 12);
+        index.add(0, page);
+
+        List<TextIndex.Match> matches = index.search("hello world", false);
+        assertEquals(1, matches.size());
+        assertArrayEquals(new float[] { 10, 10, 30, 12, 52, 10, 30, 12 }, matches.get(0).rectangles, 0.001f);
+        assertEquals(0, index.search("helloworld", false).size());
+        assertEquals(1, index.search("world spaced", false).size());
+    }
+
+    @Test
+    public void testIgnoreCase() {
+        TextIndex index = createIndex();
+        assertEquals(1, index.search("hello", false).size());
+        List<TextIndex.Match> matches = index.search("HELLO", true);
+        assertEquals(2, matches.size());
+        assertEquals(0, matches.get(0).page);
+        assertEquals(1, matches.get(1).page);
+    }
+
+    @Test
+    public void testNoMatchAcrossPages() {
+        TextIndex index = createIndex();
+        assertEquals(0, index.search("line hello", true).size());
+        assertEquals(0, index.search("", true).size());
+    }
+
+    @Test
+    public void testNoOverlappingMatches() {
+        TextIndex index = new TextIndex();
+        TextIndex.Builder page = new TextIndex.Builder();
+        page.add("aaa", 0, 0, 30, 10);
+        index.add(0, page);
+        assertEquals(1, index.search("aa", false).size());
+        assertEquals(3, index.search("A", true).size());
+
+        //The cached text follows the pages added afterwards.
+        TextIndex.Builder next = new TextIndex.Builder();
+        next.add("aa", 0, 0, 20, 10);
+        index.add(1, next);
+        assertEquals(2, index.search("aa", false).size());
+    }
+
+    @Test
+    public void testPageAddedOnce() {
+        TextIndex index = createIndex();
+        TextIndex.Builder again = new TextIndex.Builder();
+        again.add("Hello", 0, 0, 10, 10);
+        index.add(0, again);
+        assertEquals(4, index.size());
+        assertEquals(true, index.contains(1));
+        assertEquals(false, index.contains(2));
+    }
+}
@@ -154,6 +154,7 @@ public class SWTRendererTest {
             sh.setSize(width + 30, height + 30);
             sh.setVisible(true);
             sh.addDisposeListener((e) -> {
+                renderer.dispose();
                 System.exit(0);
             });
         }